@@ -9,11 +9,22 @@
  * (at your option) any later version.
  */
 
+import cipher.KeyRotation;
+import cipher.KeyWrapper;
+import cipher.RSAManager;
+import png.PNGProcessor;
 import ui.DoroFrame;
 import javax.swing.*;
+import java.io.File;
+import java.nio.file.*;
+import java.util.Map;
 
 public class Main {
     public static void main(String[] args) {
+        if (args.length > 0 && "rotate-keys".equals(args[0])) {
+            System.exit(rotateKeys(args));
+        }
+
         SwingUtilities.invokeLater(() -> {
             try {
                 UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -25,4 +36,46 @@ public class Main {
             app.setVisible(true);
         });
     }
-}
\ No newline at end of file
+
+    // Headless: java Main rotate-keys <directory> [--new-keys] [--x25519]
+    private static int rotateKeys(String[] args) {
+        Path directory = null;
+        boolean newKeys = false;
+        byte wrapperId = KeyWrapper.RSA;
+        for (int i = 1; i < args.length; i++) {
+            if ("--new-keys".equals(args[i])) {
+                newKeys = true;
+            } else if ("--x25519".equals(args[i])) {
+                wrapperId = KeyWrapper.X25519;
+            } else {
+                directory = Paths.get(args[i]);
+            }
+        }
+        if (directory == null || !Files.isDirectory(directory)) {
+            System.err.println("Usage: rotate-keys <directory> [--new-keys] [--x25519]");
+            return 2;
+        }
+
+        try {
+            RSAManager rsaManager = new RSAManager();
+            rsaManager.setKeyWrapper(wrapperId);
+            // The replaced pair stays in the keyring to unwrap the old keys
+            if (newKeys) {
+                rsaManager.generateNewKeys(wrapperId);
+            }
+
+            long start = System.nanoTime();
+            KeyRotation.Result result = new KeyRotation(rsaManager, new PNGProcessor()).rotate(directory);
+            for (Map.Entry<File, String> error : result.getErrors().entrySet()) {
+                System.err.println(error.getKey() + ": " + error.getValue());
+            }
+            System.out.printf("Re-wrapped %d keys in %d of %d files in %d ms, %d failed%n",
+                    result.getKeys(), result.getRotatedFiles(), result.getFiles(),
+                    (System.nanoTime() - start) / 1_000_000, result.getErrors().size());
+            return result.getErrors().isEmpty() ? 0 : 1;
+        } catch (Exception e) {
+            System.err.println("Key rotation failed: " + e.getMessage());
+            return 1;
+        }
+    }
+}
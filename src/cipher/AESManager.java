@@ -1,82 +1,439 @@
 package cipher;
 
 import javax.crypto.*;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.SecureRandom;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.stream.IntStream;
 
+// Despite the name, seals with any ContentCipher; AES-GCM remains the default
 public class AESManager {
-    private static final String AES_ALGORITHM = "AES/GCM/NoPadding";
     private static final int AES_KEY_SIZE = 256;
+    static final int KEY_BYTES = AES_KEY_SIZE / 8;
     private static final int GCM_IV_LENGTH = 12;
     private static final int GCM_TAG_LENGTH = 128;
+    private static final int GCM_TAG_BYTES = GCM_TAG_LENGTH / 8;
+
+    // Segmented layout: segment size (u32), nonce prefix, then each segment's ciphertext and tag.
+    // Segment i is sealed under nonce prefix || i (u32) || last flag, as in the STREAM construction,
+    // so segments can be processed independently while reordering and truncation are detected.
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int NONCE_PREFIX_LENGTH = GCM_IV_LENGTH - 5;
+    private static final int SEGMENTED_HEADER_LENGTH = 4 + NONCE_PREFIX_LENGTH;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
     
+    private final ContentCipher contentCipher;
     private SecretKey aesKey;
     private byte[] iv;
     
     public AESManager() {
+        this(ContentCipher.AES_GCM);
+    }
+
+    public AESManager(ContentCipher contentCipher) {
+        this.contentCipher = contentCipher;
         generateNewKey();
     }
     
     public AESManager(byte[] keyBytes) {
-        this.aesKey = new SecretKeySpec(keyBytes, "AES");
+        this(keyBytes, ContentCipher.AES_GCM);
+    }
+
+    public AESManager(byte[] keyBytes, ContentCipher contentCipher) {
+        this.contentCipher = contentCipher;
+        this.aesKey = new SecretKeySpec(keyBytes, contentCipher.getKeyAlgorithm());
+    }
+
+    public ContentCipher getContentCipher() {
+        return contentCipher;
     }
     
     public void generateNewKey() {
         try {
-            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            keyGen.init(AES_KEY_SIZE);
-            this.aesKey = keyGen.generateKey();
+            // An AES key is just random bytes, no KeyGenerator lookup needed
+            byte[] keyBytes = new byte[AES_KEY_SIZE / 8];
+            CryptoContext.random().nextBytes(keyBytes);
+            this.aesKey = new SecretKeySpec(keyBytes, contentCipher.getKeyAlgorithm());
         } catch (Exception e) {
             throw new RuntimeException("Failed to generate AES key", e);
         }
     }
     
     public String encrypt(String plainText) {
+        return Base64.getEncoder().encodeToString(encrypt(plainText.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Returns the IV followed by the ciphertext and tag
+    public byte[] encrypt(byte[] plainText) {
         try {
-            Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
-            
             iv = new byte[GCM_IV_LENGTH];
-            SecureRandom random = new SecureRandom();
-            random.nextBytes(iv);
+            CryptoContext.random().nextBytes(iv);
             
-            GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey, gcmSpec);
+            Cipher cipher = initCipher(Cipher.ENCRYPT_MODE, contentCipher.parameters(iv, 0, iv.length));
             
-            byte[] cipherText = cipher.doFinal(plainText.getBytes("UTF-8"));
-            
-            byte[] combined = new byte[iv.length + cipherText.length];
+            byte[] combined = new byte[GCM_IV_LENGTH + cipher.getOutputSize(plainText.length)];
             System.arraycopy(iv, 0, combined, 0, iv.length);
-            System.arraycopy(cipherText, 0, combined, iv.length, cipherText.length);
+            cipher.doFinal(plainText, 0, plainText.length, combined, iv.length);
             
-            return Base64.getEncoder().encodeToString(combined);
+            return combined;
         } catch (Exception e) {
             throw new RuntimeException("AES encryption failed", e);
         }
     }
     
     public String decrypt(String encryptedText) {
+        byte[] combined = Base64.getDecoder().decode(encryptedText);
+        return new String(decrypt(combined, 0, combined.length), StandardCharsets.UTF_8);
+    }
+
+    // Decrypts an IV followed by ciphertext and tag, as produced by encrypt(byte[])
+    public byte[] decrypt(byte[] data, int offset, int length) {
         try {
-            byte[] combined = Base64.getDecoder().decode(encryptedText);
+            Cipher cipher = initCipher(Cipher.DECRYPT_MODE, contentCipher.parameters(data, offset, GCM_IV_LENGTH));
             
-            byte[] iv = new byte[GCM_IV_LENGTH];
-            byte[] cipherText = new byte[combined.length - GCM_IV_LENGTH];
-            
-            System.arraycopy(combined, 0, iv, 0, iv.length);
-            System.arraycopy(combined, iv.length, cipherText, 0, cipherText.length);
-            
-            Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
-            GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.DECRYPT_MODE, aesKey, gcmSpec);
-            
-            byte[] plainText = cipher.doFinal(cipherText);
-            return new String(plainText, "UTF-8");
+            return cipher.doFinal(data, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH);
         } catch (Exception e) {
             throw new RuntimeException("AES decryption failed", e);
         }
     }
     
+    // Same as decrypt(byte[], int, int) for a buffer's remaining bytes, read in place so a mapped
+    // chunk is never copied onto the heap first
+    public byte[] decrypt(ByteBuffer data) {
+        try {
+            if (data.remaining() < GCM_IV_LENGTH + GCM_TAG_BYTES) {
+                throw new IllegalArgumentException("Ciphertext too short");
+            }
+            ByteBuffer input = data.duplicate();
+            byte[] nonce = new byte[GCM_IV_LENGTH];
+            input.get(nonce);
+            Cipher cipher = initCipher(Cipher.DECRYPT_MODE, contentCipher.parameters(nonce, 0, nonce.length));
+
+            byte[] output = new byte[input.remaining() - GCM_TAG_BYTES];
+            cipher.doFinal(input, ByteBuffer.wrap(output));
+            return output;
+        } catch (Exception e) {
+            throw new RuntimeException("AES decryption failed", e);
+        }
+    }
+
+    public byte[] encryptSegmented(byte[] plainText) {
+        int segmentSize = SEGMENT_SIZE;
+        int segments = Math.max(1, (plainText.length + segmentSize - 1) / segmentSize);
+
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        CryptoContext.random().nextBytes(noncePrefix);
+
+        byte[] output = new byte[SEGMENTED_HEADER_LENGTH + plainText.length + segments * GCM_TAG_BYTES];
+        output[0] = (byte) (segmentSize >>> 24);
+        output[1] = (byte) (segmentSize >>> 16);
+        output[2] = (byte) (segmentSize >>> 8);
+        output[3] = (byte) segmentSize;
+        System.arraycopy(noncePrefix, 0, output, 4, NONCE_PREFIX_LENGTH);
+
+        forEachSegment(segments, i -> {
+            int start = i * segmentSize;
+            int length = Math.min(segmentSize, plainText.length - start);
+            Cipher cipher = initCipher(Cipher.ENCRYPT_MODE, segmentNonce(noncePrefix, i, i == segments - 1));
+            cipher.doFinal(plainText, start, length, output,
+                    SEGMENTED_HEADER_LENGTH + start + i * GCM_TAG_BYTES);
+        });
+        return output;
+    }
+
+    public byte[] decryptSegmented(byte[] data, int offset, int length) {
+        int segmentSize;
+        int segments;
+        try {
+            segmentSize = readSegmentSize(data, offset, length);
+            segments = segmentCount(segmentSize, length);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES decryption failed", e);
+        }
+        int body = length - SEGMENTED_HEADER_LENGTH;
+        byte[] noncePrefix = Arrays.copyOfRange(data, offset + 4, offset + SEGMENTED_HEADER_LENGTH);
+
+        byte[] output = new byte[body - segments * GCM_TAG_BYTES];
+        forEachSegment(segments, i -> {
+            int start = i * (segmentSize + GCM_TAG_BYTES);
+            int segmentLength = Math.min(segmentSize + GCM_TAG_BYTES, body - start);
+            Cipher cipher = initCipher(Cipher.DECRYPT_MODE, segmentNonce(noncePrefix, i, i == segments - 1));
+            cipher.doFinal(data, offset + SEGMENTED_HEADER_LENGTH + start, segmentLength,
+                    output, i * segmentSize);
+        });
+        return output;
+    }
+
+    public byte[] decryptSegmented(ByteBuffer data) {
+        int offset = data.position();
+        int length = data.remaining();
+        int segmentSize;
+        int segments;
+        try {
+            if (length < SEGMENTED_HEADER_LENGTH + GCM_TAG_BYTES) {
+                throw new GeneralSecurityException("Invalid segmented ciphertext");
+            }
+            segmentSize = checkSegmentSize(data.getInt(offset));
+            segments = segmentCount(segmentSize, length);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES decryption failed", e);
+        }
+        int body = length - SEGMENTED_HEADER_LENGTH;
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        data.duplicate().position(offset + 4).get(noncePrefix);
+
+        byte[] output = new byte[body - segments * GCM_TAG_BYTES];
+        forEachSegment(segments, i -> {
+            int start = offset + SEGMENTED_HEADER_LENGTH + i * (segmentSize + GCM_TAG_BYTES);
+            int segmentLength = Math.min(segmentSize + GCM_TAG_BYTES, offset + length - start);
+            ByteBuffer input = data.duplicate().limit(start + segmentLength).position(start);
+            Cipher cipher = initCipher(Cipher.DECRYPT_MODE, segmentNonce(noncePrefix, i, i == segments - 1));
+            cipher.doFinal(input, ByteBuffer.wrap(output, i * segmentSize, segmentLength - GCM_TAG_BYTES));
+        });
+        return output;
+    }
+
+    private Cipher initCipher(int mode, AlgorithmParameterSpec parameters) throws GeneralSecurityException {
+        return initCipher(CryptoContext.cipher(contentCipher.getTransformation()), mode, parameters);
+    }
+
+    // ChaCha20 refuses two initializations in a row with the same key and nonce, as when a
+    // chunk is decrypted right after being encrypted on the same thread; a fresh instance has
+    // no previous state to compare with. Only decryption retries: every encryption draws a new
+    // nonce, so a refusal there is a real reuse and must not be worked around
+    private Cipher initCipher(Cipher cipher, int mode, AlgorithmParameterSpec parameters) throws GeneralSecurityException {
+        try {
+            cipher.init(mode, aesKey, parameters);
+        } catch (InvalidKeyException e) {
+            if (contentCipher != ContentCipher.CHACHA20_POLY1305 || mode != Cipher.DECRYPT_MODE) {
+                throw e;
+            }
+            cipher = CryptoContext.newCipher(contentCipher.getTransformation());
+            cipher.init(mode, aesKey, parameters);
+        }
+        return cipher;
+    }
+
+    public static long segmentedLength(long plainLength) {
+        long segments = Math.max(1, (plainLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        return SEGMENTED_HEADER_LENGTH + plainLength + segments * GCM_TAG_BYTES;
+    }
+
+    // Streams the segmented layout; memory use is one segment no matter how large the input is.
+    // Returns the number of plaintext bytes read.
+    public long encrypt(InputStream in, OutputStream out) throws IOException {
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        CryptoContext.random().nextBytes(noncePrefix);
+
+        byte[] header = new byte[SEGMENTED_HEADER_LENGTH];
+        header[0] = (byte) (SEGMENT_SIZE >>> 24);
+        header[1] = (byte) (SEGMENT_SIZE >>> 16);
+        header[2] = (byte) (SEGMENT_SIZE >>> 8);
+        header[3] = (byte) SEGMENT_SIZE;
+        System.arraycopy(noncePrefix, 0, header, 4, NONCE_PREFIX_LENGTH);
+        out.write(header);
+
+        // One byte of lookahead tells whether the segment just read is the last one
+        byte[] plain = new byte[SEGMENT_SIZE + 1];
+        byte[] sealed = new byte[SEGMENT_SIZE + GCM_TAG_BYTES];
+        int carried = 0;
+        long total = 0;
+        try {
+            Cipher cipher = CryptoContext.cipher(contentCipher.getTransformation());
+            for (int index = 0; ; index++) {
+                int read = carried + readFully(in, plain, carried, plain.length - carried);
+                boolean last = read <= SEGMENT_SIZE;
+                int length = last ? read : SEGMENT_SIZE;
+
+                cipher = initCipher(cipher, Cipher.ENCRYPT_MODE, segmentNonce(noncePrefix, index, last));
+                int sealedLength = cipher.doFinal(plain, 0, length, sealed, 0);
+                out.write(sealed, 0, sealedLength);
+                total += length;
+
+                if (last) {
+                    return total;
+                }
+                plain[0] = plain[SEGMENT_SIZE];
+                carried = 1;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES encryption failed", e);
+        }
+    }
+
+    // Streams a segmented ciphertext back to plaintext, one authenticated segment at a time
+    public void decrypt(InputStream in, OutputStream out) throws IOException {
+        byte[] header = new byte[SEGMENTED_HEADER_LENGTH];
+        if (readFully(in, header, 0, header.length) < header.length) {
+            throw new IOException("Invalid segmented ciphertext");
+        }
+        int segmentSize;
+        try {
+            segmentSize = readSegmentSize(header, 0, header.length + GCM_TAG_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        byte[] noncePrefix = Arrays.copyOfRange(header, 4, SEGMENTED_HEADER_LENGTH);
+
+        byte[] sealed = new byte[segmentSize + GCM_TAG_BYTES + 1];
+        byte[] plain = new byte[segmentSize];
+        int carried = 0;
+        try {
+            Cipher cipher = CryptoContext.cipher(contentCipher.getTransformation());
+            for (int index = 0; ; index++) {
+                int read = carried + readFully(in, sealed, carried, sealed.length - carried);
+                boolean last = read <= segmentSize + GCM_TAG_BYTES;
+                int length = last ? read : segmentSize + GCM_TAG_BYTES;
+                if (length < GCM_TAG_BYTES) {
+                    throw new IOException("Truncated segmented ciphertext");
+                }
+
+                cipher = initCipher(cipher, Cipher.DECRYPT_MODE, segmentNonce(noncePrefix, index, last));
+                int plainLength = cipher.doFinal(sealed, 0, length, plain, 0);
+                out.write(plain, 0, plainLength);
+
+                if (last) {
+                    return;
+                }
+                sealed[0] = sealed[segmentSize + GCM_TAG_BYTES];
+                carried = 1;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES decryption failed", e);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int count = in.read(buffer, offset + total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    // Random access: decrypt one segment of a segmented ciphertext without touching the others
+    public byte[] decryptSegment(byte[] data, int offset, int length, int index) {
+        try {
+            int segmentSize = readSegmentSize(data, offset, length);
+            int segments = segmentCount(segmentSize, length);
+            if (index < 0 || index >= segments) {
+                throw new IndexOutOfBoundsException("Segment " + index + " of " + segments);
+            }
+            int body = length - SEGMENTED_HEADER_LENGTH;
+            int start = index * (segmentSize + GCM_TAG_BYTES);
+            int segmentLength = Math.min(segmentSize + GCM_TAG_BYTES, body - start);
+            byte[] noncePrefix = Arrays.copyOfRange(data, offset + 4, offset + SEGMENTED_HEADER_LENGTH);
+
+            Cipher cipher = initCipher(Cipher.DECRYPT_MODE, segmentNonce(noncePrefix, index, index == segments - 1));
+            return cipher.doFinal(data, offset + SEGMENTED_HEADER_LENGTH + start, segmentLength);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES decryption failed", e);
+        }
+    }
+
+    // Same, reading the segment in place from a buffer such as a chunk's mapping
+    public byte[] decryptSegment(ByteBuffer data, int index) {
+        try {
+            int offset = data.position();
+            int length = data.remaining();
+            if (length < SEGMENTED_HEADER_LENGTH + GCM_TAG_BYTES) {
+                throw new GeneralSecurityException("Invalid segmented ciphertext");
+            }
+            int segmentSize = checkSegmentSize(data.getInt(offset));
+            int segments = segmentCount(segmentSize, length);
+            if (index < 0 || index >= segments) {
+                throw new IndexOutOfBoundsException("Segment " + index + " of " + segments);
+            }
+            int start = offset + SEGMENTED_HEADER_LENGTH + index * (segmentSize + GCM_TAG_BYTES);
+            int segmentLength = Math.min(segmentSize + GCM_TAG_BYTES, offset + length - start);
+            byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            data.duplicate().position(offset + 4).get(noncePrefix);
+
+            ByteBuffer input = data.duplicate().limit(start + segmentLength).position(start);
+            byte[] output = new byte[segmentLength - GCM_TAG_BYTES];
+            Cipher cipher = initCipher(Cipher.DECRYPT_MODE, segmentNonce(noncePrefix, index, index == segments - 1));
+            cipher.doFinal(input, ByteBuffer.wrap(output));
+            return output;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES decryption failed", e);
+        }
+    }
+
+    public static int segmentCount(byte[] data, int offset, int length) throws GeneralSecurityException {
+        return segmentCount(readSegmentSize(data, offset, length), length);
+    }
+
+    private static int segmentCount(int segmentSize, int length) throws GeneralSecurityException {
+        int body = length - SEGMENTED_HEADER_LENGTH;
+        int segments = (body + segmentSize + GCM_TAG_BYTES - 1) / (segmentSize + GCM_TAG_BYTES);
+        int last = body - (segments - 1) * (segmentSize + GCM_TAG_BYTES);
+        if (segments < 1 || last < GCM_TAG_BYTES) {
+            throw new GeneralSecurityException("Invalid segmented ciphertext");
+        }
+        return segments;
+    }
+
+    private static int readSegmentSize(byte[] data, int offset, int length) throws GeneralSecurityException {
+        if (length < SEGMENTED_HEADER_LENGTH + GCM_TAG_BYTES) {
+            throw new GeneralSecurityException("Invalid segmented ciphertext");
+        }
+        return checkSegmentSize(((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+    }
+
+    // Every path reads the segment size through here, so a forged size can neither overflow
+    // segmentSize + GCM_TAG_BYTES nor size a huge buffer
+    private static int checkSegmentSize(int segmentSize) throws GeneralSecurityException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new GeneralSecurityException("Invalid segment size: " + segmentSize);
+        }
+        return segmentSize;
+    }
+
+    private AlgorithmParameterSpec segmentNonce(byte[] noncePrefix, int index, boolean last) {
+        byte[] nonce = new byte[GCM_IV_LENGTH];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+        nonce[GCM_IV_LENGTH - 1] = (byte) (last ? 1 : 0);
+        return contentCipher.parameters(nonce, 0, nonce.length);
+    }
+
+    private interface SegmentTask {
+        void run(int index) throws GeneralSecurityException;
+    }
+
+    // Segments are independent, so they are spread over the common ForkJoinPool
+    private static void forEachSegment(int segments, SegmentTask task) {
+        try {
+            IntStream range = IntStream.range(0, segments);
+            (segments > 1 ? range.parallel() : range).forEach(i -> {
+                try {
+                    task.run(i);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw new RuntimeException("AES segment processing failed", e.getCause());
+            }
+            throw e;
+        }
+    }
+
     public byte[] getKeyBytes() {
         return aesKey.getEncoded();
     }
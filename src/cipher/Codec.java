@@ -0,0 +1,17 @@
+package cipher;
+
+import java.io.IOException;
+
+// Compression applied to plaintext before it is sealed. Ciphertext does not compress, so
+// this is the last point where an encrypted payload can still shrink. The id is stored in
+// the envelope; further codecs are made available for decryption through Codecs.register.
+public interface Codec {
+    byte getId();
+
+    String getName();
+
+    byte[] compress(byte[] input);
+
+    // originalLength is the size recorded in the envelope; anything else is an error
+    byte[] decompress(byte[] input, int offset, int length, int originalLength) throws IOException;
+}
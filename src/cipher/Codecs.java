@@ -0,0 +1,57 @@
+package cipher;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+// Codecs known to the envelope reader, by id. Id 0 is reserved for uncompressed payloads.
+public final class Codecs {
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+
+    // Below this size the codec header and the deflate overhead outweigh any gain
+    private static final int MIN_LENGTH = 128;
+    // Large inputs are probed with a prefix first, so incompressible data is only read once
+    private static final int SAMPLE_LENGTH = 4096;
+    private static final double SAMPLE_MAX_RATIO = 0.9;
+
+    private static final Map<Byte, Codec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec(Deflater.DEFAULT_COMPRESSION));
+    }
+
+    private Codecs() {
+    }
+
+    public static void register(Codec codec) {
+        if (codec.getId() == NONE) {
+            throw new IllegalArgumentException("Codec id 0 is reserved");
+        }
+        CODECS.put(codec.getId(), codec);
+    }
+
+    public static Codec byId(byte id) {
+        Codec codec = CODECS.get(id);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown compression codec " + id);
+        }
+        return codec;
+    }
+
+    // Returns the compressed input, or null when compressing would not make it smaller
+    static byte[] compressIfSmaller(Codec codec, byte[] input) {
+        if (input.length < MIN_LENGTH) {
+            return null;
+        }
+        if (input.length >= 4 * SAMPLE_LENGTH) {
+            byte[] sample = Arrays.copyOf(input, SAMPLE_LENGTH);
+            if (codec.compress(sample).length > SAMPLE_LENGTH * SAMPLE_MAX_RATIO) {
+                return null;
+            }
+        }
+        byte[] compressed = codec.compress(input);
+        return compressed.length + 5 < input.length ? compressed : null;
+    }
+}
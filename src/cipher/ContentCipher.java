@@ -0,0 +1,135 @@
+package cipher;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.management.ManagementFactory;
+import java.security.spec.AlgorithmParameterSpec;
+
+// AEADs usable for chunk content. Both take a 256 bit key and a 96 bit nonce and append a
+// 128 bit tag, so the single-shot and segmented layouts of AESManager fit either one.
+public enum ContentCipher {
+    AES_GCM((byte) 0, "AES-256-GCM", "AES/GCM/NoPadding", "AES"),
+    CHACHA20_POLY1305((byte) 1, "ChaCha20-Poly1305", "ChaCha20-Poly1305", "ChaCha20");
+
+    private static final int BENCHMARK_BYTES = 64 * 1024;
+    // Per cipher; the timing only runs on hosts where AES hardware support is unknown or absent
+    private static final long BENCHMARK_BUDGET_NANOS = 200_000_000L;
+    private static final int STABLE_ROUNDS = 50;
+
+    private final byte id;
+    private final String displayName;
+    private final String transformation;
+    private final String keyAlgorithm;
+
+    ContentCipher(byte id, String displayName, String transformation, String keyAlgorithm) {
+        this.id = id;
+        this.displayName = displayName;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    String getTransformation() {
+        return transformation;
+    }
+
+    String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    AlgorithmParameterSpec parameters(byte[] nonce, int offset, int length) {
+        return this == AES_GCM
+                ? new GCMParameterSpec(128, nonce, offset, length)
+                : new IvParameterSpec(nonce, offset, length);
+    }
+
+    public static ContentCipher fromId(byte id) {
+        for (ContentCipher cipher : values()) {
+            if (cipher.id == id) {
+                return cipher;
+            }
+        }
+        throw new IllegalArgumentException("Unknown content cipher " + id);
+    }
+
+    // AES-GCM whenever the JVM runs AES on the CPU's AES instructions, where it beats
+    // ChaCha20-Poly1305. Only when that is off or cannot be told are the two timed.
+    public static ContentCipher fastest() {
+        Boolean intrinsics = aesIntrinsics();
+        if (intrinsics == null) {
+            // Not HotSpot: x86-64 and ARMv8 CPUs without AES instructions are rare enough to assume them
+            String arch = System.getProperty("os.arch", "");
+            intrinsics = arch.equals("amd64") || arch.equals("x86_64") || arch.equals("aarch64");
+        }
+        if (intrinsics) {
+            return AES_GCM;
+        }
+
+        byte[] key = new byte[32];
+        CryptoContext.random().nextBytes(key);
+        ContentCipher fastest = AES_GCM;
+        long best = Long.MAX_VALUE;
+        for (ContentCipher candidate : values()) {
+            try {
+                long elapsed = benchmark(candidate, key);
+                if (elapsed < best) {
+                    best = elapsed;
+                    fastest = candidate;
+                }
+            } catch (Exception e) {
+                // Provider without this cipher; leave it out
+            }
+        }
+        return fastest;
+    }
+
+    // Null when the JVM is not HotSpot or has no such flag for this CPU
+    private static Boolean aesIntrinsics() {
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return hotSpot != null ? Boolean.valueOf(hotSpot.getVMOption("UseAESIntrinsics").getValue()) : null;
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // Fastest round once the JIT has settled: rounds continue until the best time has not
+    // improved noticeably for a while, or the time budget runs out
+    private static long benchmark(ContentCipher candidate, byte[] key) throws Exception {
+        Cipher cipher = CryptoContext.newCipher(candidate.transformation);
+        SecretKeySpec keySpec = new SecretKeySpec(key, candidate.keyAlgorithm);
+        byte[] plain = new byte[BENCHMARK_BYTES];
+        byte[] output = new byte[BENCHMARK_BYTES + 16];
+        byte[] nonce = new byte[12];
+
+        long deadline = System.nanoTime() + BENCHMARK_BUDGET_NANOS;
+        long best = Long.MAX_VALUE;
+        int stableRounds = 0;
+        // A new nonce every round; ChaCha20 refuses to encrypt twice under the same one
+        for (int round = 0; stableRounds < STABLE_ROUNDS && System.nanoTime() < deadline; round++) {
+            nonce[0] = (byte) (round >>> 24);
+            nonce[1] = (byte) (round >>> 16);
+            nonce[2] = (byte) (round >>> 8);
+            nonce[3] = (byte) round;
+            long start = System.nanoTime();
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, candidate.parameters(nonce, 0, nonce.length));
+            cipher.doFinal(plain, 0, plain.length, output, 0);
+            long elapsed = System.nanoTime() - start;
+
+            stableRounds = elapsed < best - best / 20 ? 0 : stableRounds + 1;
+            best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,96 @@
+package cipher;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import java.security.*;
+import java.util.HashMap;
+import java.util.Map;
+
+// Per-thread cache of JCA primitives, so provider lookup and entropy seeding are paid once
+// per thread instead of once per chunk. Callers must init a Cipher before every use and
+// must not hold one across calls that may fetch the same transformation again.
+final class CryptoContext {
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyFactory>> KEY_FACTORIES = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Mac>> MACS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyAgreement>> AGREEMENTS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyPairGenerator>> GENERATORS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private CryptoContext() {
+    }
+
+    static Cipher cipher(String transformation) throws GeneralSecurityException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    // Replaces this thread's cached instance with a new one
+    static Cipher newCipher(String transformation) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(transformation);
+        CIPHERS.get().put(transformation, cipher);
+        return cipher;
+    }
+
+    static KeyFactory keyFactory(String algorithm) throws GeneralSecurityException {
+        Map<String, KeyFactory> factories = KEY_FACTORIES.get();
+        KeyFactory factory = factories.get(algorithm);
+        if (factory == null) {
+            factory = KeyFactory.getInstance(algorithm);
+            factories.put(algorithm, factory);
+        }
+        return factory;
+    }
+
+    static MessageDigest digest(String algorithm) throws GeneralSecurityException {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(algorithm);
+            digests.put(algorithm, digest);
+        }
+        digest.reset();
+        return digest;
+    }
+
+    static Mac mac(String algorithm) throws GeneralSecurityException {
+        Map<String, Mac> macs = MACS.get();
+        Mac mac = macs.get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            macs.put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    static KeyAgreement keyAgreement(String algorithm) throws GeneralSecurityException {
+        Map<String, KeyAgreement> agreements = AGREEMENTS.get();
+        KeyAgreement agreement = agreements.get(algorithm);
+        if (agreement == null) {
+            agreement = KeyAgreement.getInstance(algorithm);
+            agreements.put(algorithm, agreement);
+        }
+        return agreement;
+    }
+
+    static KeyPairGenerator keyPairGenerator(String algorithm) throws GeneralSecurityException {
+        Map<String, KeyPairGenerator> generators = GENERATORS.get();
+        KeyPairGenerator generator = generators.get(algorithm);
+        if (generator == null) {
+            generator = KeyPairGenerator.getInstance(algorithm);
+            generators.put(algorithm, generator);
+        }
+        return generator;
+    }
+
+    static SecureRandom random() {
+        return RANDOM.get();
+    }
+}
@@ -0,0 +1,76 @@
+package cipher;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw zlib stream; the level only affects compression, so every level shares one id
+public class DeflateCodec implements Codec {
+    private final int level;
+
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte getId() {
+        return Codecs.DEFLATE;
+    }
+
+    @Override
+    public String getName() {
+        return level == Deflater.BEST_SPEED ? "Deflate (fast)" : "Deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] input) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                baos.write(buffer, 0, count);
+            }
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] input, int offset, int length, int originalLength) throws IOException {
+        // Deflate cannot expand data by more than about 1032:1
+        if (originalLength < 0 || originalLength > 1032L * length + 64) {
+            throw new IOException("Invalid compressed payload length " + originalLength);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, offset, length);
+
+            // The recorded length sizes the output exactly and caps what a forged stream can expand to
+            byte[] output = new byte[originalLength];
+            int total = 0;
+            while (total < originalLength && !inflater.finished()) {
+                int count = inflater.inflate(output, total, originalLength - total);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                total += count;
+            }
+            if (total != originalLength || !inflater.finished()) {
+                throw new IOException("Compressed payload does not match its recorded length");
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package cipher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Header in front of every binary envelope. Version 4 has a fixed 13 byte prefix:
+//   magic "dR", version, flags, content cipher id, codec id, key wrapper id,
+//   uncompressed length (u32, FLAG_COMPRESSED only), key reference length (u16)
+// followed by the key reference: the wrapped data key, with FLAG_RECIPIENTS a KeyWraps list of
+// it wrapped for several recipients, or with FLAG_SESSION_KEY the id of a SessionKey. The body
+// is nonce + ciphertext + tag, or with FLAG_SEGMENTED the segmented layout of AESManager.
+// FLAG_FILE marks a hidden file rather than text; its plaintext is laid out by HiddenFile.
+// Every field sits at a fixed offset, so parsing reads a ByteBuffer in place and hands out
+// views of the key reference and body instead of copies.
+public final class EnvelopeHeader {
+    static final byte FLAG_SEGMENTED = 0x01;
+    static final byte FLAG_SESSION_KEY = 0x02;
+    static final byte FLAG_COMPRESSED = 0x04;
+    static final byte FLAG_RECIPIENTS = 0x08;
+    static final byte FLAG_FILE = 0x10;
+
+    private static final byte MAGIC_0 = 'd';
+    private static final byte MAGIC_1 = 'R';
+    private static final byte VERSION = 4;
+    private static final int FIXED_LENGTH = 13;
+
+    private final byte flags;
+    private final ContentCipher cipher;
+    private final byte codecId;
+    private final byte wrapperId;
+    private final int plainLength;
+    private final ByteBuffer keyRef;
+    private final ByteBuffer body;
+
+    private EnvelopeHeader(byte flags, ContentCipher cipher, byte codecId, byte wrapperId,
+                           int plainLength, ByteBuffer keyRef, ByteBuffer body) {
+        this.flags = flags;
+        this.cipher = cipher;
+        this.codecId = codecId;
+        this.wrapperId = wrapperId;
+        this.plainLength = plainLength;
+        this.keyRef = keyRef;
+        this.body = body;
+    }
+
+    // Looks at the first bytes only
+    public static boolean isEnvelope(ByteBuffer data) {
+        int start = data.position();
+        return data.remaining() >= FIXED_LENGTH && data.get(start) == MAGIC_0 && data.get(start + 1) == MAGIC_1
+                && data.get(start + 2) == VERSION;
+    }
+
+    // Parses the envelope in data[position, limit) without moving its position
+    public static EnvelopeHeader parse(ByteBuffer data) {
+        if (!isEnvelope(data)) {
+            throw new IllegalArgumentException("Unsupported encrypted format");
+        }
+        int start = data.position();
+        int end = data.limit();
+        byte flags = data.get(start + 3);
+        ContentCipher cipher = ContentCipher.fromId(data.get(start + 4));
+        byte codecId = data.get(start + 5);
+        byte wrapperId = data.get(start + 6);
+        int plainLength = data.getInt(start + 7);
+        int keyRefLength = data.getShort(start + 11) & 0xFFFF;
+        int keyRefStart = start + FIXED_LENGTH;
+
+        // The data key is either wrapped for a list of recipients or held by a session key
+        if (((flags & FLAG_SESSION_KEY) != 0) == ((flags & FLAG_RECIPIENTS) != 0)) {
+            throw new IllegalArgumentException("Invalid encrypted format");
+        }
+        if ((flags & FLAG_SESSION_KEY) != 0 && keyRefLength != SessionKey.KEY_ID_LENGTH) {
+            throw new IllegalArgumentException("Invalid encrypted format");
+        }
+        // Hidden files are only ever streamed, so always segmented and never compressed
+        if ((flags & FLAG_FILE) != 0
+                && ((flags & FLAG_SEGMENTED) == 0 || (flags & FLAG_COMPRESSED) != 0)) {
+            throw new IllegalArgumentException("Invalid encrypted format");
+        }
+        if ((flags & FLAG_COMPRESSED) != 0 && (codecId == Codecs.NONE || plainLength < 0)) {
+            throw new IllegalArgumentException("Invalid encrypted format");
+        }
+        if (keyRefStart + keyRefLength > end) {
+            throw new IllegalArgumentException("Invalid encrypted format");
+        }
+        ByteBuffer keyRef = data.duplicate().limit(keyRefStart + keyRefLength).position(keyRefStart).slice();
+        ByteBuffer body = data.duplicate().limit(end).position(keyRefStart + keyRefLength).slice();
+        return new EnvelopeHeader(flags, cipher, codecId, wrapperId, plainLength, keyRef, body);
+    }
+
+    // Reads just the header from a stream, leaving it positioned at the body
+    public static EnvelopeHeader read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[FIXED_LENGTH];
+        data.readFully(header);
+        int keyRefLength = ((header[11] & 0xFF) << 8) | (header[12] & 0xFF);
+        header = Arrays.copyOf(header, FIXED_LENGTH + keyRefLength);
+        data.readFully(header, FIXED_LENGTH, keyRefLength);
+
+        try {
+            return parse(ByteBuffer.wrap(header));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public static int length(int keyRefLength) {
+        return FIXED_LENGTH + keyRefLength;
+    }
+
+    public static void write(ByteBuffer out, byte flags, ContentCipher cipher, byte codecId, byte wrapperId,
+                             int plainLength, byte[] keyRef) {
+        if (keyRef.length > 0xFFFF) {
+            throw new IllegalArgumentException("Too many recipients for one envelope");
+        }
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(VERSION);
+        out.put(flags);
+        out.put(cipher.getId());
+        out.put(codecId);
+        out.put(wrapperId);
+        out.putInt(plainLength);
+        out.putShort((short) keyRef.length);
+        out.put(keyRef);
+    }
+
+    public boolean isSegmented() {
+        return (flags & FLAG_SEGMENTED) != 0;
+    }
+
+    public boolean hasSessionKey() {
+        return (flags & FLAG_SESSION_KEY) != 0;
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    public boolean hasRecipients() {
+        return (flags & FLAG_RECIPIENTS) != 0;
+    }
+
+    public boolean isFile() {
+        return (flags & FLAG_FILE) != 0;
+    }
+
+    public ContentCipher getCipher() {
+        return cipher;
+    }
+
+    public byte getCodecId() {
+        return codecId;
+    }
+
+    public byte getWrapperId() {
+        return wrapperId;
+    }
+
+    public int getPlainLength() {
+        return plainLength;
+    }
+
+    // Wrapped data key, recipient list or session key id; a view into the parsed buffer
+    public ByteBuffer getKeyRef() {
+        return keyRef.duplicate();
+    }
+
+    public byte[] getSessionKeyId() {
+        if (!hasSessionKey()) {
+            return null;
+        }
+        byte[] keyId = new byte[SessionKey.KEY_ID_LENGTH];
+        keyRef.duplicate().get(keyId);
+        return keyId;
+    }
+
+    // Empty for headers read from a stream
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+}
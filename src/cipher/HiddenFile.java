@@ -0,0 +1,79 @@
+package cipher;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// Plaintext of a hidden file envelope: the file's real name (u16 length, UTF-8), then its bytes.
+// The name is sealed with the content, so the chunk keyword only has to be a readable label,
+// and it fits in the first segment, so reading it decrypts one segment only.
+final class HiddenFile {
+    static final int MAX_NAME_BYTES = 1024;
+
+    private HiddenFile() {
+    }
+
+    static byte[] nameBlock(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        // Shortened a character at a time so no UTF-8 sequence is cut in half
+        while (bytes.length > MAX_NAME_BYTES) {
+            name = name.substring(0, name.offsetByCodePoints(name.length(), -1));
+            bytes = name.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] block = new byte[2 + bytes.length];
+        block[0] = (byte) (bytes.length >>> 8);
+        block[1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, block, 2, bytes.length);
+        return block;
+    }
+
+    // Name from the start of the plaintext, e.g. the first decrypted segment
+    static String readName(byte[] plain) {
+        if (plain.length < 2) {
+            throw new IllegalArgumentException("Invalid hidden file");
+        }
+        int length = ((plain[0] & 0xFF) << 8) | (plain[1] & 0xFF);
+        if (length > MAX_NAME_BYTES || 2 + length > plain.length) {
+            throw new IllegalArgumentException("Invalid hidden file");
+        }
+        return new String(plain, 2, length, StandardCharsets.UTF_8);
+    }
+
+    // Passes on only the file's bytes, dropping the name block in front of them
+    static OutputStream skipName(OutputStream out) {
+        return new FilterOutputStream(out) {
+            private final byte[] length = new byte[2];
+            // Bytes of the name block still to drop; -1 until its length is known
+            private int skip = -1;
+            private int lengthRead;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0 && skip != 0) {
+                    if (skip < 0) {
+                        length[lengthRead++] = b[off++];
+                        len--;
+                        if (lengthRead == 2) {
+                            skip = ((length[0] & 0xFF) << 8) | (length[1] & 0xFF);
+                            if (skip > MAX_NAME_BYTES) {
+                                throw new IOException("Invalid hidden file");
+                            }
+                        }
+                    } else {
+                        int count = Math.min(skip, len);
+                        skip -= count;
+                        off += count;
+                        len -= count;
+                    }
+                }
+                if (len > 0) {
+                    out.write(b, off, len);
+                }
+            }
+        };
+    }
+}
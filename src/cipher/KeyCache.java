@@ -0,0 +1,105 @@
+package cipher;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Bounded, time-limited cache of unwrapped AES keys, looked up by the SHA-256 of the
+// wrapped key, so re-opening a file or toggling a chunk skips the RSA private-key operation.
+// Key bytes are copied in and out and overwritten with zeros when an entry leaves the cache.
+public class KeyCache {
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<ByteBuffer, Entry> entries;
+    private long hits;
+    private long misses;
+
+    private static class Entry {
+        final byte[] key;
+        final long expiresAt;
+
+        Entry(byte[] key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public KeyCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    public KeyCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        // Access order makes the eldest entry the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                if (size() > KeyCache.this.maxEntries) {
+                    Arrays.fill(eldest.getValue().key, (byte) 0);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns a copy of the cached key, or null on a miss
+    public synchronized byte[] get(byte[] wrappedKeyDigest) {
+        ByteBuffer id = ByteBuffer.wrap(wrappedKeyDigest);
+        Entry entry = entries.get(id);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(id);
+            Arrays.fill(entry.key, (byte) 0);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.key.clone();
+    }
+
+    public synchronized void put(byte[] wrappedKeyDigest, byte[] key) {
+        Entry previous = entries.put(ByteBuffer.wrap(wrappedKeyDigest.clone()),
+                new Entry(key.clone(), System.currentTimeMillis() + ttlMillis));
+        if (previous != null) {
+            Arrays.fill(previous.key, (byte) 0);
+        }
+        purgeExpired();
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            Arrays.fill(entry.key, (byte) 0);
+        }
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.expiresAt <= now) {
+                Arrays.fill(entry.key, (byte) 0);
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package cipher;
+
+import model.TextChunk;
+import png.PNGIndex;
+import png.PNGProcessor;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.*;
+
+// Re-wraps the data keys of every PNG under a directory for the current keys and recipients,
+// keeping the wraps made for other people's keys. Only key blocks, envelope headers and
+// legacy ENC: key parts are rewritten; ciphertext is never decrypted and is spliced into the
+// saved file, so the cost is one unwrap and one wrap per key, not per byte. Files are
+// processed in parallel.
+public class KeyRotation {
+    private final RSAManager rsaManager;
+    private final PNGProcessor pngProcessor;
+    private final int threads;
+
+    public static class Result {
+        private final AtomicInteger files = new AtomicInteger();
+        private final AtomicInteger rotatedFiles = new AtomicInteger();
+        private final AtomicInteger keys = new AtomicInteger();
+        private final Map<File, String> errors = new ConcurrentSkipListMap<>();
+
+        public int getFiles() {
+            return files.get();
+        }
+
+        public int getRotatedFiles() {
+            return rotatedFiles.get();
+        }
+
+        public int getKeys() {
+            return keys.get();
+        }
+
+        public Map<File, String> getErrors() {
+            return errors;
+        }
+    }
+
+    public KeyRotation(RSAManager rsaManager, PNGProcessor pngProcessor) {
+        this(rsaManager, pngProcessor, Runtime.getRuntime().availableProcessors());
+    }
+
+    public KeyRotation(RSAManager rsaManager, PNGProcessor pngProcessor, int threads) {
+        this.rsaManager = rsaManager;
+        this.pngProcessor = pngProcessor;
+        this.threads = threads;
+    }
+
+    public Result rotate(Path directory) throws IOException, InterruptedException {
+        List<File> files;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            files = paths.filter(Files::isRegularFile)
+                    .filter(path -> path.getFileName().toString().toLowerCase().endsWith(".png"))
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+
+        Result result = new Result();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (File file : files) {
+                executor.execute(() -> {
+                    result.files.incrementAndGet();
+                    try {
+                        int keys = rotate(file);
+                        if (keys > 0) {
+                            result.rotatedFiles.incrementAndGet();
+                            result.keys.addAndGet(keys);
+                        }
+                    } catch (Exception e) {
+                        result.errors.put(file, String.valueOf(e.getMessage()));
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    // Returns the number of keys re-wrapped; files without any are left untouched
+    public int rotate(File file) throws Exception {
+        PNGIndex index = pngProcessor.readIndex(file);
+        List<TextChunk> textChunks = pngProcessor.extractTextChunks(index.getChunks());
+        int keys = 0;
+
+        List<byte[]> keyBlocks = new ArrayList<>();
+        for (byte[] keyBlock : pngProcessor.extractKeyBlocks(index.getChunks())) {
+            SessionKey sessionKey = SessionKey.fromBlock(ByteBuffer.wrap(keyBlock));
+            keyBlocks.add(rsaManager.rewrap(sessionKey).toBlock());
+            keys++;
+        }
+
+        for (TextChunk chunk : textChunks) {
+            if (chunk.hasEncryptedData()) {
+                ByteBuffer envelope = chunk.getEncryptedBuffer();
+                EnvelopeHeader header = EnvelopeHeader.parse(envelope);
+                byte[] rewrapped = rsaManager.rewrapHeader(header);
+                if (rewrapped != null) {
+                    chunk.replaceEncryptedHeader(rewrapped, envelope.remaining() - header.getBody().remaining());
+                    keys++;
+                }
+            } else if (chunk.isEncrypted() && rsaManager.isEncrypted(chunk.getText())) {
+                chunk.setText(rsaManager.rewrapLegacy(chunk.getText()));
+                keys++;
+            }
+        }
+
+        if (keys > 0) {
+            pngProcessor.saveWithTextChunks(index, textChunks, keyBlocks, file);
+        }
+        return keys;
+    }
+}
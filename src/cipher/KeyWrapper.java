@@ -0,0 +1,39 @@
+package cipher;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+
+// Protects AES keys under a recipient's public key. The id is stored next to every
+// wrapped key, so files written with one backend stay readable when another is selected.
+public interface KeyWrapper {
+    byte RSA = 0;
+    byte X25519 = 1;
+
+    byte getId();
+
+    String getName();
+
+    // Our current key pair of this kind
+    KeyPair getKeyPair();
+
+    default PublicKey getPublicKey() {
+        return getKeyPair().getPublic();
+    }
+
+    byte[] wrap(PublicKey recipient, byte[] aesKey) throws Exception;
+
+    default byte[] wrap(byte[] aesKey) throws Exception {
+        return wrap(getPublicKey(), aesKey);
+    }
+
+    // Unwraps with a pair from the keyring
+    byte[] unwrap(KeyPair keyPair, byte[] wrappedKey) throws Exception;
+
+    // Unwraps with our current private key
+    default byte[] unwrap(byte[] wrappedKey) throws Exception {
+        return unwrap(getKeyPair(), wrappedKey);
+    }
+
+    // Size of a key wrapped for this recipient
+    int getWrappedLength(PublicKey recipient);
+}
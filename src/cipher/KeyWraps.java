@@ -0,0 +1,107 @@
+package cipher;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// One data key wrapped for several recipients. Encoded as a count (u8) followed by
+// fingerprint, key wrapper id, wrapped key length (u16) and wrapped key per recipient.
+// Decryption picks its entry by fingerprint through the Keyring, so no wrap is tried blindly.
+public final class KeyWraps {
+    public static final int MAX_RECIPIENTS = 255;
+
+    public static final class Entry {
+        // Null for keys wrapped before recipients were recorded
+        private final byte[] fingerprint;
+        private final byte wrapperId;
+        private final byte[] wrappedKey;
+
+        Entry(byte[] fingerprint, byte wrapperId, byte[] wrappedKey) {
+            this.fingerprint = fingerprint;
+            this.wrapperId = wrapperId;
+            this.wrappedKey = wrappedKey;
+        }
+
+        byte[] getFingerprint() {
+            return fingerprint;
+        }
+
+        public byte getWrapperId() {
+            return wrapperId;
+        }
+
+        byte[] getWrappedKey() {
+            return wrappedKey;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    KeyWraps(List<Entry> entries) {
+        if (entries.isEmpty() || entries.size() > MAX_RECIPIENTS) {
+            throw new IllegalArgumentException("Between 1 and " + MAX_RECIPIENTS + " recipients are supported");
+        }
+        this.entries = entries;
+    }
+
+    // A key from legacy ENC: text, wrapped for a single unnamed recipient
+    static KeyWraps single(byte wrapperId, byte[] wrappedKey) {
+        return new KeyWraps(Collections.singletonList(new Entry(null, wrapperId, wrappedKey)));
+    }
+
+    // Reads the encoding at the buffer's position and advances past it
+    static KeyWraps parse(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            throw new IllegalArgumentException("Invalid recipient list");
+        }
+        int count = data.get() & 0xFF;
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (data.remaining() < Recipient.FINGERPRINT_LENGTH + 3) {
+                throw new IllegalArgumentException("Invalid recipient list");
+            }
+            byte[] fingerprint = new byte[Recipient.FINGERPRINT_LENGTH];
+            data.get(fingerprint);
+            byte wrapperId = data.get();
+            int length = data.getShort() & 0xFFFF;
+            if (length > data.remaining()) {
+                throw new IllegalArgumentException("Invalid recipient list");
+            }
+            byte[] wrappedKey = new byte[length];
+            data.get(wrappedKey);
+            entries.add(new Entry(fingerprint, wrapperId, wrappedKey));
+        }
+        return new KeyWraps(entries);
+    }
+
+    public static int encodedLength(List<Integer> wrappedLengths) {
+        int length = 1;
+        for (int wrappedLength : wrappedLengths) {
+            length += Recipient.FINGERPRINT_LENGTH + 3 + wrappedLength;
+        }
+        return length;
+    }
+
+    public byte[] encode() {
+        List<Integer> lengths = new ArrayList<>();
+        for (Entry entry : entries) {
+            lengths.add(entry.wrappedKey.length);
+        }
+        ByteBuffer out = ByteBuffer.allocate(encodedLength(lengths));
+        out.put((byte) entries.size());
+        for (Entry entry : entries) {
+            out.put(entry.fingerprint != null ? entry.fingerprint : new byte[Recipient.FINGERPRINT_LENGTH]);
+            out.put(entry.wrapperId);
+            out.putShort((short) entry.wrappedKey.length);
+            out.put(entry.wrappedKey);
+        }
+        return out.array();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+}
@@ -0,0 +1,206 @@
+package cipher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.security.*;
+import java.security.spec.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every key pair we have owned, indexed by the fingerprint of its public key, so a wrap
+// naming its key is opened with a single lookup. Retired pairs are kept in a directory as
+// "<kind>_<fingerprint>.pem" holding both PEM blocks; the index is built from the file names
+// alone and a key is parsed the first time a wrap asks for it.
+public class Keyring {
+    private static final String DIRECTORY = "doro_keyring";
+    private static final String SUFFIX = ".pem";
+
+    private final Path directory;
+    private final Map<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final byte wrapperId;
+        // Null for keys that are only held in memory
+        final Path file;
+        volatile KeyPair keyPair;
+
+        Entry(byte wrapperId, Path file, KeyPair keyPair) {
+            this.wrapperId = wrapperId;
+            this.file = file;
+            this.keyPair = keyPair;
+        }
+    }
+
+    public Keyring() {
+        this(Paths.get(DIRECTORY));
+    }
+
+    public Keyring(Path directory) {
+        this.directory = directory;
+        index();
+    }
+
+    private void index() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int separator = name.indexOf('_');
+                if (separator < 0) {
+                    continue;
+                }
+                byte wrapperId = wrapperId(name.substring(0, separator));
+                byte[] fingerprint = fromHex(name.substring(separator + 1, name.length() - SUFFIX.length()));
+                if (wrapperId < 0 || fingerprint == null) {
+                    continue;
+                }
+                entries.putIfAbsent(ByteBuffer.wrap(fingerprint), new Entry(wrapperId, file, null));
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading keyring: " + e.getMessage());
+        }
+    }
+
+    // Makes a pair available for unwrapping without writing it anywhere
+    public void add(byte wrapperId, KeyPair keyPair) {
+        byte[] fingerprint = Recipient.fingerprint(keyPair.getPublic());
+        Entry entry = entries.get(ByteBuffer.wrap(fingerprint));
+        if (entry != null && entry.keyPair == null) {
+            entry.keyPair = keyPair;
+        } else if (entry == null) {
+            entries.put(ByteBuffer.wrap(fingerprint), new Entry(wrapperId, null, keyPair));
+        }
+    }
+
+    // Writes a pair to the keyring directory so it outlives the key files it is replaced in
+    public void archive(byte wrapperId, KeyPair keyPair) throws IOException {
+        byte[] fingerprint = Recipient.fingerprint(keyPair.getPublic());
+        Entry entry = entries.get(ByteBuffer.wrap(fingerprint));
+        if (entry != null && entry.file != null) {
+            return;
+        }
+
+        Files.createDirectories(directory);
+        Path file = directory.resolve(kindName(wrapperId) + "_" + toHex(fingerprint) + SUFFIX);
+        Files.writeString(file, RSAManager.bytesToPem(keyPair.getPublic().getEncoded(), "PUBLIC KEY")
+                + RSAManager.bytesToPem(keyPair.getPrivate().getEncoded(), "PRIVATE KEY"));
+        entries.put(ByteBuffer.wrap(fingerprint), new Entry(wrapperId, file, keyPair));
+    }
+
+    // Adds an older pair kept as separate public and private key files; returns its fingerprint
+    public String importKeyPair(File publicKeyFile, File privateKeyFile) throws Exception {
+        byte[] publicKeyBytes = RSAManager.pemToBytes(Files.readString(publicKeyFile.toPath()), "PUBLIC KEY");
+        byte[] privateKeyBytes = RSAManager.pemToBytes(Files.readString(privateKeyFile.toPath()), "PRIVATE KEY");
+        byte wrapperId = X25519Manager.isX25519Key(publicKeyBytes) ? KeyWrapper.X25519 : KeyWrapper.RSA;
+        KeyPair keyPair = parse(wrapperId, publicKeyBytes, privateKeyBytes);
+        archive(wrapperId, keyPair);
+        return toHex(Recipient.fingerprint(keyPair.getPublic()));
+    }
+
+    // Null if no pair with this fingerprint is known
+    public KeyPair get(byte[] fingerprint) throws Exception {
+        Entry entry = entries.get(ByteBuffer.wrap(fingerprint));
+        return entry != null ? load(entry, fingerprint) : null;
+    }
+
+    public boolean contains(byte[] fingerprint) {
+        return entries.containsKey(ByteBuffer.wrap(fingerprint));
+    }
+
+    // Every pair of one kind, for wraps written before they named their key
+    public List<KeyPair> keyPairs(byte wrapperId) throws Exception {
+        List<KeyPair> keyPairs = new ArrayList<>();
+        for (Map.Entry<ByteBuffer, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().wrapperId == wrapperId) {
+                byte[] fingerprint = new byte[Recipient.FINGERPRINT_LENGTH];
+                entry.getKey().duplicate().get(fingerprint);
+                keyPairs.add(load(entry.getValue(), fingerprint));
+            }
+        }
+        return keyPairs;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static KeyPair load(Entry entry, byte[] fingerprint) throws Exception {
+        KeyPair keyPair = entry.keyPair;
+        if (keyPair != null) {
+            return keyPair;
+        }
+        synchronized (entry) {
+            if (entry.keyPair == null) {
+                String pem = Files.readString(entry.file);
+                KeyPair parsed = parse(entry.wrapperId,
+                        RSAManager.pemToBytes(pemBlock(pem, "PUBLIC KEY"), "PUBLIC KEY"),
+                        RSAManager.pemToBytes(pemBlock(pem, "PRIVATE KEY"), "PRIVATE KEY"));
+                if (!Arrays.equals(Recipient.fingerprint(parsed.getPublic()), fingerprint)) {
+                    throw new IllegalArgumentException("Key file does not match its name: " + entry.file);
+                }
+                entry.keyPair = parsed;
+            }
+            return entry.keyPair;
+        }
+    }
+
+    private static KeyPair parse(byte wrapperId, byte[] publicKeyBytes, byte[] privateKeyBytes)
+            throws GeneralSecurityException {
+        KeyFactory keyFactory = CryptoContext.keyFactory(wrapperId == KeyWrapper.X25519 ? "X25519" : "RSA");
+        return new KeyPair(keyFactory.generatePublic(new X509EncodedKeySpec(publicKeyBytes)),
+                keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKeyBytes)));
+    }
+
+    private static String pemBlock(String pem, String keyType) {
+        String beginMarker = "-----BEGIN " + keyType + "-----";
+        String endMarker = "-----END " + keyType + "-----";
+        int start = pem.indexOf(beginMarker);
+        int end = pem.indexOf(endMarker, start);
+        if (start < 0 || end < 0) {
+            throw new IllegalArgumentException("Missing " + keyType + " block");
+        }
+        return pem.substring(start, end + endMarker.length());
+    }
+
+    private static String kindName(byte wrapperId) {
+        return wrapperId == KeyWrapper.X25519 ? "x25519" : "rsa";
+    }
+
+    private static byte wrapperId(String kindName) {
+        switch (kindName) {
+            case "rsa":
+                return KeyWrapper.RSA;
+            case "x25519":
+                return KeyWrapper.X25519;
+            default:
+                return -1;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() != 2 * Recipient.FINGERPRINT_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
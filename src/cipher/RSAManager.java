@@ -1,23 +1,58 @@
 package cipher;
 
+import model.TextChunk;
+import png.ByteBufferInputStream;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
+import java.security.interfaces.RSAKey;
 import java.security.spec.*;
 import javax.crypto.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
-public class RSAManager {
+public class RSAManager implements KeyWrapper {
     private static final String PUBLIC_KEY_FILE = "doro_pub.pem";
     private static final String PRIVATE_KEY_FILE = "doro_prv.pem";
     private static final String ENC_PREFIX = "ENC:";
     private static final int KEY_SIZE = 2048;
+    private static final String RSA_ALGORITHM = "RSA/ECB/PKCS1Padding";
+
+    // Generates spare key pairs in the background; daemon, so it never keeps the JVM alive
+    private static final ExecutorService KEY_GENERATOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rsa-keygen");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
 
     private KeyPair keyPair;
+    private final KeyCache keyCache = new KeyCache();
+    // Current and retired key pairs, looked up by the fingerprint a wrap names
+    private final Keyring keyring = new Keyring();
+    private final X25519Manager x25519Manager;
+    // Backend that wraps keys for new envelopes; unwrapping follows the id stored with the key
+    private KeyWrapper keyWrapper = this;
+    // Cipher for new envelopes; decryption follows the id stored in the envelope
+    private ContentCipher contentCipher;
+    // Applied before sealing when it makes the payload smaller; null disables compression
+    private Codec codec = new DeflateCodec(Deflater.BEST_SPEED);
+    // Imported public keys; new data keys are wrapped for each of them and for our own key
+    private final List<Recipient> recipients = new CopyOnWriteArrayList<>();
+    // Pair the next generateNewKeys() takes, so replacing keys does not wait for a prime search
+    private Future<KeyPair> spareKeyPair;
 
     public RSAManager() {
         loadOrGenerateKeys();
+        x25519Manager = new X25519Manager();
+        keyring.add(RSA, keyPair);
+        keyring.add(X25519, x25519Manager.getKeyPair());
+        contentCipher = ContentCipher.fastest();
+        prepareSpareKeyPair();
     }
 
     public void loadOrGenerateKeys() {
@@ -45,7 +80,7 @@ public class RSAManager {
         String privatePem = Files.readString(privateKeyFile.toPath());
         byte[] privateKeyBytes = pemToBytes(privatePem, "PRIVATE KEY");
 
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        KeyFactory keyFactory = CryptoContext.keyFactory("RSA");
         X509EncodedKeySpec publicSpec = new X509EncodedKeySpec(publicKeyBytes);
         PKCS8EncodedKeySpec privateSpec = new PKCS8EncodedKeySpec(privateKeyBytes);
 
@@ -55,11 +90,14 @@ public class RSAManager {
         keyPair = new KeyPair(publicKey, privateKey);
     }
 
+    // The replaced pair is archived in the keyring, so what it wrapped stays readable
     public void generateNewKeys() {
         try {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-            keyGen.initialize(KEY_SIZE);
-            keyPair = keyGen.generateKeyPair();
+            if (keyPair != null) {
+                keyring.archive(RSA, keyPair);
+            }
+            keyPair = takeSpareKeyPair();
+            keyring.add(RSA, keyPair);
 
             saveKeys();
         } catch (Exception e) {
@@ -67,6 +105,40 @@ public class RSAManager {
         }
     }
 
+    // Replaces the key pair of one backend
+    public void generateNewKeys(byte wrapperId) {
+        if (wrapperId == X25519) {
+            try {
+                keyring.archive(X25519, x25519Manager.getKeyPair());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to archive X25519 keys", e);
+            }
+            x25519Manager.generateNewKeys();
+            keyring.add(X25519, x25519Manager.getKeyPair());
+        } else {
+            generateNewKeys();
+        }
+    }
+
+    private synchronized void prepareSpareKeyPair() {
+        if (spareKeyPair == null) {
+            spareKeyPair = KEY_GENERATOR.submit(RSAManager::generateKeyPair);
+        }
+    }
+
+    // Hands out the pregenerated pair, or makes one now if none was started, and starts the next
+    private synchronized KeyPair takeSpareKeyPair() throws Exception {
+        Future<KeyPair> spare = spareKeyPair;
+        spareKeyPair = KEY_GENERATOR.submit(RSAManager::generateKeyPair);
+        return spare != null ? spare.get() : generateKeyPair();
+    }
+
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(KEY_SIZE);
+        return keyGen.generateKeyPair();
+    }
+
     private void saveKeys() throws IOException {
         // Save public key as PEM
         String publicPem = bytesToPem(keyPair.getPublic().getEncoded(), "PUBLIC KEY");
@@ -77,21 +149,106 @@ public class RSAManager {
         Files.writeString(Paths.get(PRIVATE_KEY_FILE), privatePem);
     }
 
+    // Exports the public key of the selected key wrapper
     public void exportPublicKey(File file) throws IOException {
-        String publicPem = bytesToPem(keyPair.getPublic().getEncoded(), "PUBLIC KEY");
+        String publicPem = bytesToPem(keyWrapper.getPublicKey().getEncoded(), "PUBLIC KEY");
         Files.writeString(file.toPath(), publicPem);
     }
 
-    public void importPublicKey(File file) throws Exception {
+    // Adds a recipient; our own keys stay in place
+    public Recipient importPublicKey(File file) throws Exception {
         String pem = Files.readString(file.toPath());
         byte[] keyBytes = pemToBytes(pem, "PUBLIC KEY");
 
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-        PublicKey publicKey = keyFactory.generatePublic(spec);
+        byte wrapperId = X25519Manager.isX25519Key(keyBytes) ? X25519 : RSA;
+        KeyFactory keyFactory = CryptoContext.keyFactory(wrapperId == X25519 ? "X25519" : "RSA");
+        PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(keyBytes));
+        return addRecipient(new Recipient(wrapperId, publicKey));
+    }
 
-        // Keep existing private key but update public key
-        keyPair = new KeyPair(publicKey, keyPair.getPrivate());
+    // Returns the recipient already holding this key, if any
+    public synchronized Recipient addRecipient(Recipient recipient) {
+        for (Recipient existing : recipientsWithSelf()) {
+            if (existing.hasFingerprint(recipient.getFingerprint())) {
+                return existing;
+            }
+        }
+        if (recipients.size() + 1 >= KeyWraps.MAX_RECIPIENTS) {
+            throw new IllegalStateException("At most " + (KeyWraps.MAX_RECIPIENTS - 1) + " recipients are supported");
+        }
+        recipients.add(recipient);
+        return recipient;
+    }
+
+    public List<Recipient> getRecipients() {
+        return Collections.unmodifiableList(recipients);
+    }
+
+    public void clearRecipients() {
+        recipients.clear();
+    }
+
+    // Our own key for the selected wrapper first, so we can always read what we encrypt
+    private List<Recipient> recipientsWithSelf() {
+        List<Recipient> all = new ArrayList<>(recipients.size() + 1);
+        all.add(new Recipient(keyWrapper.getId(), keyWrapper.getPublicKey()));
+        all.addAll(recipients);
+        return all;
+    }
+
+    // Wraps the data key for every recipient in parallel; the payload is encrypted only once
+    private KeyWraps wrapForRecipients(byte[] key) {
+        List<Recipient> targets = recipientsWithSelf();
+        List<KeyWraps.Entry> entries = (targets.size() > 1 ? targets.parallelStream() : targets.stream())
+                .map(recipient -> {
+                    try {
+                        byte[] wrapped = keyWrapper(recipient.getWrapperId()).wrap(recipient.getPublicKey(), key);
+                        return new KeyWraps.Entry(recipient.getFingerprint(), recipient.getWrapperId(), wrapped);
+                    } catch (Exception e) {
+                        throw new RuntimeException("Failed to wrap key for " + recipient.getFingerprintHex(), e);
+                    }
+                })
+                .collect(Collectors.toList());
+        return new KeyWraps(entries);
+    }
+
+    // Picks the wrap made for a key in our keyring by fingerprint and unwraps only that one
+    private byte[] unwrapKey(KeyWraps keyWraps) throws Exception {
+        for (KeyWraps.Entry entry : keyWraps.getEntries()) {
+            byte[] fingerprint = entry.getFingerprint();
+            if (fingerprint == null) {
+                return unwrapUnnamed(entry);
+            }
+            KeyPair owner = keyring.get(fingerprint);
+            if (owner != null) {
+                return unwrapKey(entry.getWrapperId(), owner, entry.getWrappedKey());
+            }
+        }
+        throw new IllegalArgumentException("Not encrypted for any key in the keyring");
+    }
+
+    // Wraps written before they named their key: the current key first, then the retired
+    // ones of the same kind, accepting only a result of the right size
+    private byte[] unwrapUnnamed(KeyWraps.Entry entry) throws Exception {
+        KeyWrapper wrapper = keyWrapper(entry.getWrapperId());
+        try {
+            return unwrapKey(entry.getWrapperId(), wrapper.getKeyPair(), entry.getWrappedKey());
+        } catch (Exception e) {
+            for (KeyPair retired : keyring.keyPairs(entry.getWrapperId())) {
+                if (retired == wrapper.getKeyPair()) {
+                    continue;
+                }
+                try {
+                    byte[] aesKey = unwrapKey(entry.getWrapperId(), retired, entry.getWrappedKey());
+                    if (aesKey.length == AESManager.KEY_BYTES) {
+                        return aesKey;
+                    }
+                } catch (Exception ignored) {
+                    // Not this one
+                }
+            }
+            throw e;
+        }
     }
 
     public String encrypt(String plainText) throws Exception {
@@ -102,30 +259,437 @@ public class RSAManager {
         return decryptHybrid(encryptedText);
     }
 
+    public KeyWrapper getKeyWrapper() {
+        return keyWrapper;
+    }
+
+    public void setKeyWrapper(byte id) {
+        keyWrapper = keyWrapper(id);
+    }
+
+    public ContentCipher getContentCipher() {
+        return contentCipher;
+    }
+
+    public void setContentCipher(ContentCipher contentCipher) {
+        this.contentCipher = contentCipher;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    public KeyWrapper keyWrapper(byte id) {
+        switch (id) {
+            case RSA:
+                return this;
+            case X25519:
+                return x25519Manager;
+            default:
+                throw new IllegalArgumentException("Unknown key wrapper " + id);
+        }
+    }
+
+    @Override
+    public byte getId() {
+        return RSA;
+    }
+
+    @Override
+    public String getName() {
+        return "RSA-" + KEY_SIZE;
+    }
+
+    @Override
+    public int getWrappedLength(PublicKey recipient) {
+        return (((RSAKey) recipient).getModulus().bitLength() + 7) / 8;
+    }
+
+    @Override
+    public byte[] wrap(PublicKey recipient, byte[] aesKey) throws Exception {
+        if (aesKey.length > 245) {
+            throw new IllegalArgumentException("AES key too long for RSA encryption");
+        }
+
+        Cipher cipher = CryptoContext.cipher(RSA_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, recipient);
+
+        return cipher.doFinal(aesKey);
+    }
+
+    @Override
+    public byte[] unwrap(KeyPair keyPair, byte[] wrappedKey) throws Exception {
+        Cipher cipher = CryptoContext.cipher(RSA_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+
+        return cipher.doFinal(wrappedKey);
+    }
+
+    public byte[] unwrapKey(byte wrapperId, byte[] wrappedKey) throws Exception {
+        return unwrapKey(wrapperId, keyWrapper(wrapperId).getKeyPair(), wrappedKey);
+    }
+
+    // Keys unwrapped recently come from the cache instead of another private-key operation
+    private byte[] unwrapKey(byte wrapperId, KeyPair keyPair, byte[] wrappedKey) throws Exception {
+        MessageDigest md = CryptoContext.digest("SHA-256");
+        md.update(wrapperId);
+        byte[] digest = md.digest(wrappedKey);
+        byte[] aesKey = keyCache.get(digest);
+        if (aesKey != null) {
+            return aesKey;
+        }
+
+        aesKey = keyWrapper(wrapperId).unwrap(keyPair, wrappedKey);
+        keyCache.put(digest, aesKey);
+        return aesKey;
+    }
+
     public boolean isEncrypted(String text) {
         return text != null && text.startsWith(ENC_PREFIX);
     }
+
+    public void encryptChunk(TextChunk chunk) throws Exception {
+        chunk.setEncryptedData(encryptToEnvelope(chunk.getText()));
+    }
+
+    // Encrypts under the file's session key instead of wrapping a fresh key for the chunk
+    public void encryptChunk(TextChunk chunk, SessionKey sessionKey) throws Exception {
+        chunk.setEncryptedData(encryptToEnvelope(chunk.getText(), sessionKey));
+    }
+
+    public void decryptChunk(TextChunk chunk) throws Exception {
+        decryptChunk(chunk, Collections.emptyList());
+    }
+
+    public void decryptChunk(TextChunk chunk, List<SessionKey> sessionKeys) throws Exception {
+        String plainText = decryptChunkText(chunk, sessionKeys);
+
+        chunk.setEncryptedData(null);
+        chunk.setText(plainText);
+        chunk.setEncrypted(false);
+    }
+
+    // Handles binary envelopes as well as legacy ENC: text; leaves the chunk unchanged
+    public String decryptChunkText(TextChunk chunk, List<SessionKey> sessionKeys) throws Exception {
+        return chunk.hasEncryptedData()
+                ? decryptEnvelope(chunk.getEncryptedBuffer(), sessionKeys)
+                : decrypt(chunk.getText());
+    }
+
+    // One public-key operation per recipient; every chunk encrypted under the key shares them
+    public SessionKey createSessionKey() throws Exception {
+        byte[] key = new AESManager().getKeyBytes();
+        KeyWraps keyWraps = wrapForRecipients(key);
+        byte[] digest = CryptoContext.digest("SHA-256").digest(keyWraps.encode());
+        return new SessionKey(Arrays.copyOf(digest, SessionKey.KEY_ID_LENGTH), keyWraps, key);
+    }
+
+    // One private-key operation per session key, however many chunks use it
+    public void unlock(SessionKey sessionKey) throws Exception {
+        synchronized (sessionKey) {
+            if (!sessionKey.isUnlocked()) {
+                sessionKey.setKey(unwrapKey(sessionKey.getKeyWraps()));
+            }
+        }
+    }
+
+    // Id of the session key an envelope was encrypted under, null if it carries its own key
+    public static byte[] sessionKeyId(ByteBuffer envelope) {
+        try {
+            return EnvelopeHeader.parse(envelope).getSessionKeyId();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public byte[] encryptToEnvelope(String plainText) throws Exception {
+        AESManager aes = new AESManager(contentCipher);
+        byte[] keyWraps = wrapForRecipients(aes.getKeyBytes()).encode();
+        return seal(aes, EnvelopeHeader.FLAG_RECIPIENTS, keyWrapper.getId(), keyWraps, plainText);
+    }
+
+    public byte[] encryptToEnvelope(String plainText, SessionKey sessionKey) throws Exception {
+        unlock(sessionKey);
+        AESManager aes = new AESManager(sessionKey.getKey(), contentCipher);
+        return seal(aes, EnvelopeHeader.FLAG_SESSION_KEY, keyWrapper.getId(), sessionKey.getKeyId(), plainText);
+    }
+
+    // Each call draws a fresh nonce, so chunks sharing a key never share one
+    private byte[] seal(AESManager aes, byte flags, byte wrapperId, byte[] keyRef, String plainText) throws Exception {
+        byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        int plainLength = 0;
+
+        // Compressed before sealing, so there is also less to encrypt
+        byte[] compressed = codec != null ? Codecs.compressIfSmaller(codec, plainBytes) : null;
+        if (compressed != null) {
+            plainLength = plainBytes.length;
+            plainBytes = compressed;
+            flags |= EnvelopeHeader.FLAG_COMPRESSED;
+        }
+
+        // Large payloads are split into segments that are sealed in parallel
+        if (plainBytes.length > AESManager.SEGMENT_SIZE) {
+            flags |= EnvelopeHeader.FLAG_SEGMENTED;
+        }
+        byte[] encryptedData = (flags & EnvelopeHeader.FLAG_SEGMENTED) != 0
+                ? aes.encryptSegmented(plainBytes)
+                : aes.encrypt(plainBytes);
+
+        ByteBuffer envelope = ByteBuffer.allocate(EnvelopeHeader.length(keyRef.length) + encryptedData.length);
+        EnvelopeHeader.write(envelope, flags, aes.getContentCipher(),
+                compressed != null ? codec.getId() : Codecs.NONE, wrapperId, plainLength, keyRef);
+        envelope.put(encryptedData);
+        return envelope.array();
+    }
+
+    // Size of the envelope encryptFileToEnvelope writes for a file of this name and length
+    public long fileEnvelopeLength(String name, long length) {
+        List<Integer> wrappedLengths = new ArrayList<>();
+        for (Recipient recipient : recipientsWithSelf()) {
+            wrappedLengths.add(keyWrapper(recipient.getWrapperId()).getWrappedLength(recipient.getPublicKey()));
+        }
+        long plainLength = HiddenFile.nameBlock(name).length + length;
+        return EnvelopeHeader.length(KeyWraps.encodedLength(wrappedLengths)) + AESManager.segmentedLength(plainLength);
+    }
+
+    // Streams a file into an envelope flagged FLAG_FILE, with its name sealed in front of it.
+    // Always segmented, so memory use stays at one segment
+    public void encryptFileToEnvelope(String name, InputStream in, OutputStream out) throws Exception {
+        AESManager aes = new AESManager(contentCipher);
+        byte[] keyWraps = wrapForRecipients(aes.getKeyBytes()).encode();
+
+        ByteBuffer header = ByteBuffer.allocate(EnvelopeHeader.length(keyWraps.length));
+        EnvelopeHeader.write(header,
+                (byte) (EnvelopeHeader.FLAG_SEGMENTED | EnvelopeHeader.FLAG_RECIPIENTS | EnvelopeHeader.FLAG_FILE),
+                contentCipher, Codecs.NONE, keyWrapper.getId(), 0, keyWraps);
+        out.write(header.array());
+
+        aes.encrypt(new SequenceInputStream(new ByteArrayInputStream(HiddenFile.nameBlock(name)), in), out);
+    }
+
+    // Whether a chunk holds a hidden file; reads its header only
+    public static boolean isHiddenFile(TextChunk chunk) {
+        if (!chunk.hasEncryptedData()) {
+            return false;
+        }
+        try {
+            return envelopeHeader(chunk).isFile();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Real name of a hidden file, from the first segment of its envelope
+    public String hiddenFileName(TextChunk chunk, List<SessionKey> sessionKeys) throws Exception {
+        EnvelopeHeader header = hiddenFileHeader(chunk);
+        AESManager aes = openEnvelope(header, sessionKeys);
+        return HiddenFile.readName(aes.decryptSegment(envelopeBody(chunk, header), 0));
+    }
+
+    // Decrypts a hidden file segment by segment straight from its chunk
+    public void extractHiddenFile(TextChunk chunk, OutputStream out, List<SessionKey> sessionKeys) throws Exception {
+        EnvelopeHeader header = hiddenFileHeader(chunk);
+        AESManager aes = openEnvelope(header, sessionKeys);
+        aes.decrypt(new ByteBufferInputStream(envelopeBody(chunk, header)), HiddenFile.skipName(out));
+    }
+
+    private static EnvelopeHeader hiddenFileHeader(TextChunk chunk) {
+        EnvelopeHeader header = chunk.hasEncryptedData() ? envelopeHeader(chunk) : null;
+        if (header == null || !header.isFile()) {
+            throw new IllegalArgumentException("Chunk does not hold a hidden file");
+        }
+        return header;
+    }
+
+    // A replaced header is parsed on its own, so neither needs the envelope copied together
+    private static EnvelopeHeader envelopeHeader(TextChunk chunk) {
+        byte[] replaced = chunk.getEncryptedHeader();
+        return EnvelopeHeader.parse(replaced != null ? ByteBuffer.wrap(replaced) : chunk.getEncryptedBuffer());
+    }
+
+    private static ByteBuffer envelopeBody(TextChunk chunk, EnvelopeHeader header) {
+        return chunk.getEncryptedHeader() != null ? chunk.getEncryptedBody() : header.getBody();
+    }
+
+    public void decryptEnvelope(InputStream in, OutputStream out) throws Exception {
+        decryptEnvelope(in, out, Collections.emptyList());
+    }
+
+    public void decryptEnvelope(InputStream in, OutputStream out, List<SessionKey> sessionKeys) throws Exception {
+        EnvelopeHeader header = EnvelopeHeader.read(in);
+        AESManager aes = openEnvelope(header, sessionKeys);
+
+        // Only text is compressed, and text envelopes are small enough to expand in memory.
+        // A hidden file comes out without the name sealed in front of it
+        OutputStream target = header.isCompressed() ? new ByteArrayOutputStream()
+                : header.isFile() ? HiddenFile.skipName(out) : out;
+        if (header.isSegmented()) {
+            aes.decrypt(in, target);
+        } else {
+            // Single-shot bodies are at most one segment long
+            byte[] body = in.readAllBytes();
+            target.write(aes.decrypt(body, 0, body.length));
+        }
+        if (header.isCompressed()) {
+            byte[] compressed = ((ByteArrayOutputStream) target).toByteArray();
+            out.write(Codecs.byId(header.getCodecId()).decompress(compressed, 0, compressed.length, header.getPlainLength()));
+        }
+    }
+
+    public String decryptEnvelope(byte[] envelope) throws Exception {
+        return decryptEnvelope(ByteBuffer.wrap(envelope), Collections.emptyList());
+    }
+
+    public String decryptEnvelope(byte[] envelope, List<SessionKey> sessionKeys) throws Exception {
+        return decryptEnvelope(ByteBuffer.wrap(envelope), sessionKeys);
+    }
+
+    // Decrypts straight from the buffer, e.g. a chunk's mapping, without copying the envelope
+    public String decryptEnvelope(ByteBuffer envelope, List<SessionKey> sessionKeys) throws Exception {
+        EnvelopeHeader header = EnvelopeHeader.parse(envelope);
+        if (header.isFile()) {
+            // Decoding a binary file as text and saving that back would destroy it
+            throw new IllegalArgumentException("Chunk holds a hidden file; use Extract Hidden File to save it");
+        }
+        AESManager aes = openEnvelope(header, sessionKeys);
+
+        ByteBuffer body = header.getBody();
+        byte[] plainText = header.isSegmented() ? aes.decryptSegmented(body) : aes.decrypt(body);
+        if (header.isCompressed()) {
+            plainText = Codecs.byId(header.getCodecId()).decompress(plainText, 0, plainText.length, header.getPlainLength());
+        }
+        return new String(plainText, StandardCharsets.UTF_8);
+    }
+
+    private AESManager openEnvelope(EnvelopeHeader header, List<SessionKey> sessionKeys) throws Exception {
+        if (header.hasSessionKey()) {
+            return new AESManager(sessionKey(header.getSessionKeyId(), sessionKeys), header.getCipher());
+        }
+        return new AESManager(unwrapKey(keyWraps(header)), header.getCipher());
+    }
+
+    private static KeyWraps keyWraps(EnvelopeHeader header) {
+        ByteBuffer keyRef = header.getKeyRef();
+        KeyWraps keyWraps = KeyWraps.parse(keyRef);
+        if (keyRef.hasRemaining()) {
+            throw new IllegalArgumentException("Invalid encrypted format");
+        }
+        return keyWraps;
+    }
+
+    // Same key and id, wrapped for the current keys and recipients; chunks using it stay as they are
+    public SessionKey rewrap(SessionKey sessionKey) throws Exception {
+        unlock(sessionKey);
+        return new SessionKey(sessionKey.getKeyId(),
+                rewrapForRecipients(sessionKey.getKeyWraps(), sessionKey.getKey()), sessionKey.getKey());
+    }
+
+    // Wraps for our own keys, retired or current, are replaced by wraps for the current keys and
+    // recipients. Wraps for anyone else's key are kept as they are: the recipient list only lives
+    // in memory, so it cannot tell who else a file was meant for
+    private KeyWraps rewrapForRecipients(KeyWraps keyWraps, byte[] key) {
+        List<KeyWraps.Entry> entries = new ArrayList<>(wrapForRecipients(key).getEntries());
+        for (KeyWraps.Entry entry : keyWraps.getEntries()) {
+            byte[] fingerprint = entry.getFingerprint();
+            // Unnamed wraps were only ever made for our own key
+            if (fingerprint == null || keyring.contains(fingerprint) || hasEntry(entries, fingerprint)) {
+                continue;
+            }
+            entries.add(entry);
+        }
+        if (entries.size() > KeyWraps.MAX_RECIPIENTS) {
+            throw new IllegalStateException("At most " + KeyWraps.MAX_RECIPIENTS + " recipients are supported");
+        }
+        return new KeyWraps(entries);
+    }
+
+    private static boolean hasEntry(List<KeyWraps.Entry> entries, byte[] fingerprint) {
+        for (KeyWraps.Entry entry : entries) {
+            if (Arrays.equals(entry.getFingerprint(), fingerprint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // New header for an envelope that carries its own key, with that key wrapped for the current
+    // keys and recipients. The body after the old header is valid behind it unchanged.
+    // Null for envelopes under a session key, which are re-wrapped through their key block.
+    public byte[] rewrapHeader(EnvelopeHeader header) throws Exception {
+        if (header.hasSessionKey()) {
+            return null;
+        }
+        KeyWraps oldWraps = keyWraps(header);
+        byte[] key = unwrapKey(oldWraps);
+        byte[] keyWraps = rewrapForRecipients(oldWraps, key).encode();
+        Arrays.fill(key, (byte) 0);
+
+        byte flags = EnvelopeHeader.FLAG_RECIPIENTS;
+        if (header.isSegmented()) {
+            flags |= EnvelopeHeader.FLAG_SEGMENTED;
+        }
+        if (header.isCompressed()) {
+            flags |= EnvelopeHeader.FLAG_COMPRESSED;
+        }
+        if (header.isFile()) {
+            flags |= EnvelopeHeader.FLAG_FILE;
+        }
+        ByteBuffer out = ByteBuffer.allocate(EnvelopeHeader.length(keyWraps.length));
+        EnvelopeHeader.write(out, flags, header.getCipher(), header.getCodecId(), keyWrapper.getId(),
+                header.getPlainLength(), keyWraps);
+        return out.array();
+    }
+
+    // Legacy ENC:key:data text with its key wrapped under our current RSA key
+    public String rewrapLegacy(String encryptedText) throws Exception {
+        int colonIndex = encryptedText.indexOf(':', ENC_PREFIX.length());
+        if (!encryptedText.startsWith(ENC_PREFIX) || colonIndex == -1) {
+            throw new IllegalArgumentException("Invalid encrypted format");
+        }
+        byte[] key = decryptAESKey(encryptedText.substring(ENC_PREFIX.length(), colonIndex));
+        String encryptedKey = encryptAESKey(key);
+        Arrays.fill(key, (byte) 0);
+        return ENC_PREFIX + encryptedKey + encryptedText.substring(colonIndex);
+    }
+
+    private byte[] sessionKey(byte[] keyId, List<SessionKey> sessionKeys) throws Exception {
+        for (SessionKey sessionKey : sessionKeys) {
+            if (sessionKey.hasKeyId(keyId)) {
+                unlock(sessionKey);
+                return sessionKey.getKey();
+            }
+        }
+        throw new IllegalArgumentException("Session key not found in this file");
+    }
     
     
     public String encryptAESKey(byte[] aesKey) throws Exception {
-        if (aesKey.length > 245) {
-            throw new IllegalArgumentException("AES key too long for RSA encryption");
-        }
-        
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
-        
-        byte[] encrypted = cipher.doFinal(aesKey);
-        return Base64.getEncoder().encodeToString(encrypted);
+        return Base64.getEncoder().encodeToString(encryptAESKeyBytes(aesKey));
+    }
+
+    public byte[] encryptAESKeyBytes(byte[] aesKey) throws Exception {
+        return wrap(keyPair.getPublic(), aesKey);
     }
     
     public byte[] decryptAESKey(String encryptedKey) throws Exception {
-        byte[] encrypted = Base64.getDecoder().decode(encryptedKey);
-        
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
-        
-        return cipher.doFinal(encrypted);
+        return decryptAESKey(Base64.getDecoder().decode(encryptedKey));
+    }
+
+    // Falls back to retired keys, since legacy text does not name its key
+    public byte[] decryptAESKey(byte[] encryptedKey) throws Exception {
+        return unwrapKey(KeyWraps.single(RSA, encryptedKey));
+    }
+
+    public KeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    public Keyring getKeyring() {
+        return keyring;
     }
     
     private String encryptHybrid(String plainText) throws Exception {
@@ -138,28 +702,32 @@ public class RSAManager {
         return ENC_PREFIX + encryptedKey + ":" + encryptedData;
     }
     
+    // Legacy ENC:key:data text. The Base64 parts are decoded from one ASCII copy of the text
+    // instead of from substrings, and the ciphertext is decrypted where it was decoded.
     private String decryptHybrid(String encryptedText) throws Exception {
         if (!encryptedText.startsWith(ENC_PREFIX)) {
             throw new IllegalArgumentException("Not an encrypted text");
         }
-        
-        String data = encryptedText.substring(ENC_PREFIX.length());
-        
-        int colonIndex = data.indexOf(':');
+
+        byte[] ascii = encryptedText.getBytes(StandardCharsets.ISO_8859_1);
+        int keyStart = ENC_PREFIX.length();
+        int colonIndex = encryptedText.indexOf(':', keyStart);
         if (colonIndex == -1) {
             throw new IllegalArgumentException("Invalid encrypted format");
         }
-        
-        String encryptedKey = data.substring(0, colonIndex);
-        String encryptedData = data.substring(colonIndex + 1);
-        
-        byte[] aesKey = decryptAESKey(encryptedKey);
-        
+
+        Base64.Decoder decoder = Base64.getDecoder();
+        ByteBuffer encryptedKey = decoder.decode(ByteBuffer.wrap(ascii, keyStart, colonIndex - keyStart));
+        ByteBuffer encryptedData = decoder.decode(ByteBuffer.wrap(ascii, colonIndex + 1, ascii.length - colonIndex - 1));
+
+        byte[] aesKey = decryptAESKey(Arrays.copyOf(encryptedKey.array(), encryptedKey.limit()));
         AESManager aes = new AESManager(aesKey);
-        
-        return aes.decrypt(encryptedData);
+
+        byte[] plainText = aes.decrypt(encryptedData.array(), 0, encryptedData.limit());
+        return new String(plainText, StandardCharsets.UTF_8);
     }
 
+    @Override
     public KeyPair getKeyPair() {
         return keyPair;
     }
@@ -170,7 +738,7 @@ public class RSAManager {
 
     public String getPublicKeyFingerprint() {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            MessageDigest md = CryptoContext.digest("SHA-256");
             byte[] digest = md.digest(keyPair.getPublic().getEncoded());
             return bytesToHex(digest).substring(0, 16); // Return first 16 chars
         } catch (Exception e) {
@@ -179,7 +747,7 @@ public class RSAManager {
     }
 
     // PEM format conversion utilities
-    private String bytesToPem(byte[] keyBytes, String keyType) {
+    static String bytesToPem(byte[] keyBytes, String keyType) {
         StringBuilder pem = new StringBuilder();
         pem.append("-----BEGIN ").append(keyType).append("-----\n");
 
@@ -197,7 +765,7 @@ public class RSAManager {
         return pem.toString();
     }
 
-    private byte[] pemToBytes(String pem, String keyType) {
+    static byte[] pemToBytes(String pem, String keyType) {
         // Remove header and footer
         String beginMarker = "-----BEGIN " + keyType + "-----";
         String endMarker = "-----END " + keyType + "-----";
@@ -0,0 +1,53 @@
+package cipher;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+
+// Someone a data key is wrapped for, identified by the fingerprint of their public key
+public class Recipient {
+    public static final int FINGERPRINT_LENGTH = 8;
+
+    private final byte wrapperId;
+    private final PublicKey publicKey;
+    private final byte[] fingerprint;
+
+    public Recipient(byte wrapperId, PublicKey publicKey) {
+        this.wrapperId = wrapperId;
+        this.publicKey = publicKey;
+        this.fingerprint = fingerprint(publicKey);
+    }
+
+    // First bytes of the SHA-256 of the encoded public key
+    public static byte[] fingerprint(PublicKey publicKey) {
+        try {
+            byte[] digest = CryptoContext.digest("SHA-256").digest(publicKey.getEncoded());
+            return Arrays.copyOf(digest, FINGERPRINT_LENGTH);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to fingerprint key", e);
+        }
+    }
+
+    public byte getWrapperId() {
+        return wrapperId;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public byte[] getFingerprint() {
+        return fingerprint.clone();
+    }
+
+    public boolean hasFingerprint(byte[] other) {
+        return Arrays.equals(fingerprint, other);
+    }
+
+    public String getFingerprintHex() {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : fingerprint) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
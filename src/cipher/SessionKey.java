@@ -0,0 +1,73 @@
+package cipher;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// AES key shared by the encrypted chunks of one PNG. It is stored once, wrapped for every
+// recipient, in a key block; envelopes refer to it by its id, so one unwrap covers them all.
+public class SessionKey {
+    // Key block: version, key id, then the KeyWraps encoding
+    private static final byte BLOCK_VERSION = 3;
+    public static final int KEY_ID_LENGTH = 8;
+
+    private final byte[] keyId;
+    private final KeyWraps keyWraps;
+    // Null until unwrapped with the private key
+    private volatile byte[] key;
+
+    SessionKey(byte[] keyId, KeyWraps keyWraps, byte[] key) {
+        this.keyId = keyId;
+        this.keyWraps = keyWraps;
+        this.key = key;
+    }
+
+    public static SessionKey fromBlock(ByteBuffer block) {
+        if (block.remaining() < 2 + KEY_ID_LENGTH || block.get() != BLOCK_VERSION) {
+            throw new IllegalArgumentException("Unsupported key block");
+        }
+        byte[] keyId = new byte[KEY_ID_LENGTH];
+        block.get(keyId);
+        KeyWraps keyWraps = KeyWraps.parse(block);
+        if (block.hasRemaining()) {
+            throw new IllegalArgumentException("Invalid key block");
+        }
+        return new SessionKey(keyId, keyWraps, null);
+    }
+
+    public byte[] toBlock() {
+        byte[] wraps = keyWraps.encode();
+        ByteBuffer block = ByteBuffer.allocate(1 + KEY_ID_LENGTH + wraps.length);
+        block.put(BLOCK_VERSION);
+        block.put(keyId);
+        block.put(wraps);
+        return block.array();
+    }
+
+    public byte[] getKeyId() {
+        return keyId.clone();
+    }
+
+    public boolean hasKeyId(byte[] id) {
+        return Arrays.equals(keyId, id);
+    }
+
+    public int getRecipientCount() {
+        return keyWraps.size();
+    }
+
+    public boolean isUnlocked() {
+        return key != null;
+    }
+
+    KeyWraps getKeyWraps() {
+        return keyWraps;
+    }
+
+    byte[] getKey() {
+        return key;
+    }
+
+    void setKey(byte[] key) {
+        this.key = key;
+    }
+}
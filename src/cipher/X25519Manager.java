@@ -0,0 +1,170 @@
+package cipher;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.security.spec.*;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+
+// ECIES-style key wrapping: every wrap agrees a fresh ephemeral X25519 key with the
+// recipient's public key and derives the AES-GCM wrapping key from it with HKDF-SHA256.
+// Wrapped key: ephemeral public key (32 raw bytes), then IV + ciphertext + tag.
+public class X25519Manager implements KeyWrapper {
+    private static final String PUBLIC_KEY_FILE = "doro_x25519_pub.pem";
+    private static final String PRIVATE_KEY_FILE = "doro_x25519_prv.pem";
+    private static final String ALGORITHM = "X25519";
+    // The X.509 encoding of an X25519 public key is this prefix followed by the raw key
+    private static final byte[] X509_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+    };
+    private static final int RAW_KEY_LENGTH = 32;
+    private static final int AES_KEY_LENGTH = 32;
+    private static final int WRAPPED_LENGTH = RAW_KEY_LENGTH + 12 + AES_KEY_LENGTH + 16;
+    private static final byte[] HKDF_INFO = "dorothy x25519 key wrap".getBytes(StandardCharsets.US_ASCII);
+
+    private KeyPair keyPair;
+
+    public X25519Manager() {
+        loadOrGenerateKeys();
+    }
+
+    public void loadOrGenerateKeys() {
+        try {
+            File publicKeyFile = new File(PUBLIC_KEY_FILE);
+            File privateKeyFile = new File(PRIVATE_KEY_FILE);
+
+            if (publicKeyFile.exists() && privateKeyFile.exists()) {
+                loadKeys(publicKeyFile, privateKeyFile);
+            } else {
+                generateNewKeys();
+            }
+        } catch (Exception e) {
+            System.err.println("Error with X25519 keys: " + e.getMessage());
+            generateNewKeys();
+        }
+    }
+
+    private void loadKeys(File publicKeyFile, File privateKeyFile) throws Exception {
+        byte[] publicKeyBytes = RSAManager.pemToBytes(Files.readString(publicKeyFile.toPath()), "PUBLIC KEY");
+        byte[] privateKeyBytes = RSAManager.pemToBytes(Files.readString(privateKeyFile.toPath()), "PRIVATE KEY");
+
+        KeyFactory keyFactory = CryptoContext.keyFactory(ALGORITHM);
+        PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(publicKeyBytes));
+        PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKeyBytes));
+
+        keyPair = new KeyPair(publicKey, privateKey);
+    }
+
+    // Microseconds, unlike an RSA key pair
+    public void generateNewKeys() {
+        try {
+            keyPair = CryptoContext.keyPairGenerator(ALGORITHM).generateKeyPair();
+
+            Files.writeString(Paths.get(PUBLIC_KEY_FILE),
+                    RSAManager.bytesToPem(keyPair.getPublic().getEncoded(), "PUBLIC KEY"));
+            Files.writeString(Paths.get(PRIVATE_KEY_FILE),
+                    RSAManager.bytesToPem(keyPair.getPrivate().getEncoded(), "PRIVATE KEY"));
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to generate X25519 keys", e);
+        }
+    }
+
+    @Override
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    public static boolean isX25519Key(byte[] x509) {
+        return x509.length == X509_PREFIX.length + RAW_KEY_LENGTH
+                && Arrays.equals(x509, 0, X509_PREFIX.length, X509_PREFIX, 0, X509_PREFIX.length);
+    }
+
+    @Override
+    public byte getId() {
+        return X25519;
+    }
+
+    @Override
+    public String getName() {
+        return "X25519";
+    }
+
+    @Override
+    public int getWrappedLength(PublicKey recipient) {
+        return WRAPPED_LENGTH;
+    }
+
+    @Override
+    public byte[] wrap(PublicKey recipient, byte[] aesKey) throws Exception {
+        KeyPair ephemeral = CryptoContext.keyPairGenerator(ALGORITHM).generateKeyPair();
+        byte[] ephemeralKey = rawKey(ephemeral.getPublic());
+
+        byte[] wrappingKey = deriveKey(ephemeral.getPrivate(), recipient, ephemeralKey, recipient);
+        byte[] sealed;
+        try {
+            sealed = new AESManager(wrappingKey).encrypt(aesKey);
+        } finally {
+            Arrays.fill(wrappingKey, (byte) 0);
+        }
+
+        byte[] wrapped = Arrays.copyOf(ephemeralKey, RAW_KEY_LENGTH + sealed.length);
+        System.arraycopy(sealed, 0, wrapped, RAW_KEY_LENGTH, sealed.length);
+        return wrapped;
+    }
+
+    @Override
+    public byte[] unwrap(KeyPair keyPair, byte[] wrappedKey) throws Exception {
+        if (wrappedKey.length <= RAW_KEY_LENGTH) {
+            throw new IllegalArgumentException("Invalid X25519 wrapped key");
+        }
+        byte[] ephemeralKey = Arrays.copyOf(wrappedKey, RAW_KEY_LENGTH);
+
+        byte[] wrappingKey = deriveKey(keyPair.getPrivate(), publicKey(ephemeralKey), ephemeralKey, keyPair.getPublic());
+        try {
+            return new AESManager(wrappingKey).decrypt(wrappedKey, RAW_KEY_LENGTH, wrappedKey.length - RAW_KEY_LENGTH);
+        } finally {
+            Arrays.fill(wrappingKey, (byte) 0);
+        }
+    }
+
+    // HKDF-SHA256 over the shared secret, salted with both public keys so a wrapped key
+    // cannot be replayed against another recipient
+    private byte[] deriveKey(PrivateKey privateKey, PublicKey publicKey, byte[] ephemeralKey,
+                             PublicKey recipient) throws Exception {
+        KeyAgreement agreement = CryptoContext.keyAgreement(ALGORITHM);
+        agreement.init(privateKey);
+        agreement.doPhase(publicKey, true);
+        byte[] sharedSecret = agreement.generateSecret();
+
+        byte[] salt = Arrays.copyOf(ephemeralKey, 2 * RAW_KEY_LENGTH);
+        System.arraycopy(rawKey(recipient), 0, salt, RAW_KEY_LENGTH, RAW_KEY_LENGTH);
+
+        Mac mac = CryptoContext.mac("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(sharedSecret);
+        Arrays.fill(sharedSecret, (byte) 0);
+
+        // A single expand block covers the 32 byte AES key
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        mac.update(HKDF_INFO);
+        mac.update((byte) 1);
+        byte[] okm = mac.doFinal();
+        Arrays.fill(pseudoRandomKey, (byte) 0);
+        return Arrays.copyOf(okm, AES_KEY_LENGTH);
+    }
+
+    private static byte[] rawKey(PublicKey publicKey) {
+        byte[] encoded = publicKey.getEncoded();
+        return Arrays.copyOfRange(encoded, encoded.length - RAW_KEY_LENGTH, encoded.length);
+    }
+
+    private static PublicKey publicKey(byte[] rawKey) throws GeneralSecurityException {
+        byte[] encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + RAW_KEY_LENGTH);
+        System.arraycopy(rawKey, 0, encoded, X509_PREFIX.length, RAW_KEY_LENGTH);
+        return CryptoContext.keyFactory(ALGORITHM).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+}
@@ -1,11 +1,19 @@
 package model;
 
+import java.nio.ByteBuffer;
+
 public class PNGChunk {
     private int length;
     private String type;
     private byte[] data;
     private int crc;
 
+    // Chunks read through a file mapping only remember where their data lives
+    private ByteBuffer source;
+    private long offset = -1;
+    // Set on text chunks that could not be parsed; they are saved back byte for byte
+    private boolean unparsed;
+
     public PNGChunk(int length, String type, byte[] data, int crc) {
         this.length = length;
         this.type = type;
@@ -13,6 +21,14 @@ public class PNGChunk {
         this.crc = crc;
     }
 
+    public PNGChunk(int length, String type, ByteBuffer source, long offset, int crc) {
+        this.length = length;
+        this.type = type;
+        this.source = source;
+        this.offset = offset;
+        this.crc = crc;
+    }
+
     public int getLength() {
         return length;
     }
@@ -30,11 +46,43 @@ public class PNGChunk {
     }
 
     public byte[] getData() {
+        if (data == null && source != null) {
+            // Materialize on demand without pinning the copy to the index
+            byte[] bytes = new byte[length];
+            getDataBuffer().get(bytes);
+            return bytes;
+        }
         return data;
     }
 
     public void setData(byte[] data) {
         this.data = data;
+        this.source = null;
+        this.offset = -1;
+    }
+
+    // Read-only view of the chunk data; mapped chunks are not copied
+    public ByteBuffer getDataBuffer() {
+        if (data == null && source != null) {
+            ByteBuffer view = source.duplicate();
+            view.position((int) offset + 8);
+            view.limit((int) offset + 8 + length);
+            return view.slice().asReadOnlyBuffer();
+        }
+        return data != null ? ByteBuffer.wrap(data).asReadOnlyBuffer() : ByteBuffer.allocate(0);
+    }
+
+    // File position of the chunk's length field, -1 for chunks built in memory
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean isUnparsed() {
+        return unparsed;
+    }
+
+    public void setUnparsed(boolean unparsed) {
+        this.unparsed = unparsed;
     }
 
     public int getCrc() {
@@ -44,4 +92,4 @@ public class PNGChunk {
     public void setCrc(int crc) {
         this.crc = crc;
     }
-}
\ No newline at end of file
+}
@@ -1,9 +1,19 @@
 package model;
 
+import java.nio.ByteBuffer;
+
 public class TextChunk {
     private String keyword;
     private String text;
     private boolean isEncrypted;
+    private boolean compressed;
+    // Raw envelope of a chunk encrypted into a binary private chunk, either in memory
+    // or left in the PNG chunk it was read from, starting at encryptedOffset
+    private byte[] encryptedData;
+    private PNGChunk encryptedSource;
+    private int encryptedOffset;
+    // Replacement header in front of a source-backed envelope's body, e.g. after its key was re-wrapped
+    private byte[] encryptedHeader;
 
     public TextChunk(String keyword, String text, boolean isEncrypted) {
         this.keyword = keyword;
@@ -16,6 +26,11 @@ public class TextChunk {
     }
 
     public void setKeyword(String keyword) {
+        // The source chunk carries the old keyword, so it can no longer be copied as is
+        if (encryptedSource != null && !keyword.equals(this.keyword)) {
+            encryptedData = getEncryptedData();
+            encryptedSource = null;
+        }
         this.keyword = keyword;
     }
 
@@ -35,6 +50,109 @@ public class TextChunk {
         isEncrypted = encrypted;
     }
 
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean hasEncryptedData() {
+        return encryptedData != null || encryptedSource != null;
+    }
+
+    public byte[] getEncryptedData() {
+        if (encryptedData == null && encryptedSource != null) {
+            if (encryptedHeader != null) {
+                return getEncryptedBuffer().array();
+            }
+            byte[] bytes = new byte[getEncryptedLength()];
+            getEncryptedBuffer().get(bytes);
+            return bytes;
+        }
+        return encryptedData;
+    }
+
+    // Read-only view of the envelope; source-backed envelopes are not copied
+    public ByteBuffer getEncryptedBuffer() {
+        if (encryptedData == null && encryptedSource != null) {
+            ByteBuffer buffer = encryptedSource.getDataBuffer();
+            buffer.position(encryptedOffset);
+            if (encryptedHeader != null) {
+                // Only contiguous in a copy
+                ByteBuffer envelope = ByteBuffer.allocate(encryptedHeader.length + buffer.remaining());
+                envelope.put(encryptedHeader).put(buffer).flip();
+                return envelope;
+            }
+            return buffer.slice();
+        }
+        return encryptedData != null ? ByteBuffer.wrap(encryptedData).asReadOnlyBuffer() : null;
+    }
+
+    public int getEncryptedLength() {
+        if (encryptedData == null && encryptedSource != null) {
+            int headerLength = encryptedHeader != null ? encryptedHeader.length : 0;
+            return headerLength + encryptedSource.getLength() - encryptedOffset;
+        }
+        return encryptedData != null ? encryptedData.length : 0;
+    }
+
+    public void setEncryptedData(byte[] encryptedData) {
+        this.encryptedData = encryptedData;
+        this.encryptedSource = null;
+        this.encryptedHeader = null;
+        if (encryptedData != null) {
+            markEncrypted();
+        }
+    }
+
+    public PNGChunk getEncryptedSource() {
+        return encryptedSource;
+    }
+
+    public void setEncryptedSource(PNGChunk encryptedSource, int encryptedOffset) {
+        this.encryptedSource = encryptedSource;
+        this.encryptedOffset = encryptedOffset;
+        this.encryptedData = null;
+        this.encryptedHeader = null;
+        markEncrypted();
+    }
+
+    // Swaps the first headerLength bytes of the envelope for header; a source-backed body stays where it is
+    public void replaceEncryptedHeader(byte[] header, int headerLength) {
+        if (encryptedData == null && encryptedSource != null && encryptedHeader == null) {
+            encryptedOffset += headerLength;
+            encryptedHeader = header;
+            markEncrypted();
+            return;
+        }
+        byte[] envelope = getEncryptedData();
+        byte[] replaced = new byte[header.length + envelope.length - headerLength];
+        System.arraycopy(header, 0, replaced, 0, header.length);
+        System.arraycopy(envelope, headerLength, replaced, header.length, envelope.length - headerLength);
+        setEncryptedData(replaced);
+    }
+
+    // Body of a source-backed envelope whose header was replaced, null otherwise
+    public ByteBuffer getEncryptedBody() {
+        if (encryptedData != null || encryptedSource == null || encryptedHeader == null) {
+            return null;
+        }
+        ByteBuffer buffer = encryptedSource.getDataBuffer();
+        buffer.position(encryptedOffset);
+        return buffer.slice();
+    }
+
+    public byte[] getEncryptedHeader() {
+        return encryptedHeader;
+    }
+
+    private void markEncrypted() {
+        this.text = "<" + getEncryptedLength() + " bytes of encrypted data>";
+        this.isEncrypted = true;
+    }
+
     public String getDisplayText(int maxLength) {
         String display = text;
         if (text.length() > maxLength) {
@@ -0,0 +1,260 @@
+package png;
+
+import model.PNGChunk;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+public class PNGChunkWriter implements Closeable {
+    // Most platforms cap a single gathering write at 1024 buffers (IOV_MAX)
+    private static final int MAX_PENDING = 1024;
+    private static final int SCRATCH_SIZE = 64 * 1024;
+    // Payloads below this size are copied next to their header instead of queued separately
+    private static final int INLINE_LIMIT = 4 * 1024;
+
+    private final WritableByteChannel channel;
+    private final CRC32 crc32 = new CRC32();
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+    private final ByteBuffer[] pending = new ByteBuffer[MAX_PENDING];
+    private int pendingCount;
+    private int scratchMark;
+    private long position;
+
+    public PNGChunkWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void writeSignature() throws IOException {
+        reserve(PNGProcessor.PNG_SIGNATURE.length);
+        scratch.put(PNGProcessor.PNG_SIGNATURE);
+        position += PNGProcessor.PNG_SIGNATURE.length;
+    }
+
+    // Returns the CRC written for the chunk
+    public int writeChunk(PNGChunk chunk) throws IOException {
+        ByteBuffer payload = chunk.getDataBuffer();
+        int length = chunk.getLength();
+        boolean inline = length <= INLINE_LIMIT;
+
+        reserve(inline ? 12 + length : 8);
+
+        // Length and type, written straight into the scratch buffer
+        scratch.putInt(length);
+        int typeStart = scratch.position();
+        String type = chunk.getType();
+        for (int i = 0; i < 4; i++) {
+            scratch.put((byte) type.charAt(i));
+        }
+
+        // Chunks still backed by their source file keep the CRC read from it
+        int crc = chunk.getCrc();
+        if (chunk.getOffset() < 0) {
+            crc32.reset();
+            crc32.update(scratch.duplicate().position(typeStart).limit(typeStart + 4));
+            crc32.update(payload.duplicate());
+            crc = (int) crc32.getValue();
+        }
+
+        if (inline) {
+            scratch.put(payload);
+        } else {
+            queue(payload);
+            reserve(4);
+        }
+        scratch.putInt(crc);
+        position += 12L + length;
+        return crc;
+    }
+
+    // A chunk whose data is the parts back to back, e.g. a new header in front of a mapped body.
+    // Large parts are queued as they are, so they are written without a copy.
+    public int writeChunk(String type, ByteBuffer... parts) throws IOException {
+        long length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Chunk too large");
+        }
+
+        reserve(8);
+        scratch.putInt((int) length);
+        int typeStart = scratch.position();
+        for (int i = 0; i < 4; i++) {
+            scratch.put((byte) type.charAt(i));
+        }
+        crc32.reset();
+        crc32.update(scratch.duplicate().position(typeStart).limit(typeStart + 4));
+
+        for (ByteBuffer part : parts) {
+            crc32.update(part.duplicate());
+            if (part.remaining() <= INLINE_LIMIT) {
+                reserve(part.remaining());
+                scratch.put(part.duplicate());
+            } else {
+                reserve(0);
+                queue(part.duplicate());
+            }
+        }
+        int crc = (int) crc32.getValue();
+        reserve(4);
+        scratch.putInt(crc);
+        position += 12 + length;
+        return crc;
+    }
+
+    // Start a chunk whose data is written through the returned stream, e.g. by a cipher.
+    // Exactly length bytes must be written before the stream is closed.
+    public ChunkOutputStream openChunk(String type, int length) throws IOException {
+        reserve(8);
+        scratch.putInt(length);
+        int typeStart = scratch.position();
+        for (int i = 0; i < 4; i++) {
+            scratch.put((byte) type.charAt(i));
+        }
+        crc32.reset();
+        crc32.update(scratch.duplicate().position(typeStart).limit(typeStart + 4));
+        position += 8;
+
+        return new ChunkOutputStream(length);
+    }
+
+    public class ChunkOutputStream extends OutputStream {
+        private final int length;
+        private long remaining;
+        private boolean closed;
+
+        private ChunkOutputStream(int length) {
+            this.length = length;
+            this.remaining = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                throw new IOException("Chunk data exceeds declared length of " + length);
+            }
+            crc32.update(b, off, len);
+            remaining -= len;
+            position += len;
+            while (len > 0) {
+                if (!scratch.hasRemaining()) {
+                    PNGChunkWriter.this.flush();
+                }
+                int count = Math.min(len, scratch.remaining());
+                scratch.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (remaining != 0) {
+                throw new IOException("Chunk data is " + remaining + " bytes short of " + length);
+            }
+            reserve(4);
+            scratch.putInt((int) crc32.getValue());
+            position += 4;
+        }
+
+        // Valid once the stream has been closed
+        public int getCrc() {
+            return (int) crc32.getValue();
+        }
+    }
+
+    // Offset in the output at which the next write lands
+    public long getPosition() {
+        return position;
+    }
+
+    // Copy a byte range of another file verbatim, letting the OS move the data
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+        flush();
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, channel);
+            if (transferred <= 0) {
+                throw new IOException("Source file ended before offset " + (position + count));
+            }
+            position += transferred;
+            count -= transferred;
+            this.position += transferred;
+        }
+    }
+
+    public void flush() throws IOException {
+        sealScratch();
+
+        ByteBuffer[] buffers = pending;
+        int count = pendingCount;
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            int first = 0;
+            while (first < count) {
+                gathering.write(buffers, first, count - first);
+                while (first < count && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                while (buffers[i].hasRemaining()) {
+                    channel.write(buffers[i]);
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            buffers[i] = null;
+        }
+        pendingCount = 0;
+        scratch.clear();
+        scratchMark = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void reserve(int bytes) throws IOException {
+        // Leave room for the scratch slice that seals the current batch
+        if (scratch.remaining() < bytes || pendingCount >= MAX_PENDING - 2) {
+            flush();
+        }
+        if (scratch.remaining() < bytes) {
+            throw new IOException("Chunk header does not fit the write buffer");
+        }
+    }
+
+    private void queue(ByteBuffer buffer) {
+        sealScratch();
+        pending[pendingCount++] = buffer;
+    }
+
+    // Turn the bytes put into scratch since the last seal into a pending slice
+    private void sealScratch() {
+        int end = scratch.position();
+        if (end > scratchMark) {
+            pending[pendingCount++] = scratch.duplicate().position(scratchMark).limit(end);
+            scratchMark = end;
+        }
+    }
+}
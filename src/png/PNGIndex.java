@@ -0,0 +1,43 @@
+package png;
+
+import model.PNGChunk;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Chunk layout of one PNG file, remembered together with the file's size and
+// modification time so it can be reused until the file changes underneath it.
+// The mapping (or, where files are not mapped, the copy) the chunks were read from is kept,
+// so the image decoder reads the same pages.
+public class PNGIndex {
+    private final File file;
+    private final List<PNGChunk> chunks;
+    private final ByteBuffer buffer;
+    private final long size;
+    private final long lastModified;
+
+    PNGIndex(File file, List<PNGChunk> chunks, ByteBuffer buffer, long size, long lastModified) {
+        this.file = file;
+        this.chunks = Collections.unmodifiableList(chunks);
+        this.buffer = buffer;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public List<PNGChunk> getChunks() {
+        return chunks;
+    }
+
+    // The whole file, read-only; positioned at its start
+    public ByteBuffer getBuffer() {
+        return buffer.asReadOnlyBuffer().position(0);
+    }
+
+    public boolean isCurrent() {
+        return file.length() == size && file.lastModified() == lastModified;
+    }
+}
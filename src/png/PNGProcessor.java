@@ -2,93 +2,329 @@ package png;
 
 import model.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
 import java.util.*;
-import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class PNGProcessor {
-    private static final byte[] PNG_SIGNATURE = {
+    static final byte[] PNG_SIGNATURE = {
             (byte)0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A
     };
 
+    // Private, ancillary, safe-to-copy chunk holding keyword and raw encrypted envelope
+    public static final String ENCRYPTED_CHUNK_TYPE = "drTy";
+    // Private chunk holding one wrapped session key shared by the file's drTy chunks
+    public static final String KEY_CHUNK_TYPE = "drKy";
+
+    // Windows refuses to replace or rename over a file while a mapping of it is live, and a
+    // mapping cannot be released before the buffer is collected. Saving over the open file
+    // would always fail there, so files are read into the heap instead of mapped
+    private static final boolean MAP_FILES = !System.getProperty("os.name", "").startsWith("Windows");
+
+    private SaveTransaction.SyncPolicy syncPolicy = SaveTransaction.SyncPolicy.FULL;
+
+    // Text of at least this many bytes is stored as zTXt when deflating makes it smaller
+    private int compressionThreshold = 1024;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    // zTXt text inflating past this is treated as corrupt rather than filling the heap
+    private static final int MAX_INFLATED_TEXT = 16 * 1024 * 1024;
+
     public List<PNGChunk> readPNGChunks(File file) throws IOException {
-        List<PNGChunk> chunks = new ArrayList<>();
+        return indexChunks(map(file));
+    }
+
+    public PNGIndex readIndex(File file) throws IOException {
+        // Stat before mapping so a concurrent change shows up as a stale index
+        long size = file.length();
+        long lastModified = file.lastModified();
+        ByteBuffer buffer = map(file);
+        return new PNGIndex(file, indexChunks(buffer), buffer, size, lastModified);
+    }
 
-        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
-            // Check PNG signature
-            byte[] signature = new byte[8];
-            dis.readFully(signature);
-            if (!Arrays.equals(signature, PNG_SIGNATURE)) {
-                throw new IOException("Not a valid PNG file");
+    private ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("PNG file too large to map");
             }
+            if (!MAP_FILES) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException("PNG file shrank while reading");
+                    }
+                }
+                return buffer.flip();
+            }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
 
-            // Read chunks
-            while (dis.available() > 0) {
-                int length = dis.readInt();
-                byte[] typeBytes = new byte[4];
-                dis.readFully(typeBytes);
-                String type = new String(typeBytes, StandardCharsets.US_ASCII);
+    private List<PNGChunk> indexChunks(ByteBuffer buffer) throws IOException {
+        List<PNGChunk> chunks = new ArrayList<>();
 
-                byte[] data = new byte[length];
-                if (length > 0) {
-                    dis.readFully(data);
-                }
+        // Check PNG signature
+        byte[] signature = new byte[8];
+        if (buffer.remaining() < signature.length) {
+            throw new IOException("Not a valid PNG file");
+        }
+        buffer.get(signature);
+        if (!Arrays.equals(signature, PNG_SIGNATURE)) {
+            throw new IOException("Not a valid PNG file");
+        }
+
+        // Index chunks; only the 8 byte header and the CRC of each chunk are touched
+        byte[] typeBytes = new byte[4];
+        while (buffer.remaining() >= 12) {
+            int offset = buffer.position();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() - 8) {
+                throw new IOException("Truncated chunk at offset " + offset);
+            }
+            buffer.get(typeBytes);
+            String type = new String(typeBytes, StandardCharsets.US_ASCII);
 
-                int crc = dis.readInt();
+            buffer.position(buffer.position() + length);
+            int crc = buffer.getInt();
 
-                chunks.add(new PNGChunk(length, type, data, crc));
+            chunks.add(new PNGChunk(length, type, buffer, offset, crc));
 
-                if ("IEND".equals(type)) {
-                    break;
-                }
+            if ("IEND".equals(type)) {
+                break;
             }
         }
 
         return chunks;
     }
 
-    public void writePNGChunks(File file, List<PNGChunk> chunks) throws IOException {
-        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(file))) {
-            // Write PNG signature
-            dos.write(PNG_SIGNATURE);
+    public SaveTransaction.SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(SaveTransaction.SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
 
-            CRC32 crc32 = new CRC32();
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public void writePNGChunks(File file, List<PNGChunk> chunks) throws IOException {
+        try (SaveTransaction transaction = SaveTransaction.begin(file, syncPolicy)) {
+            PNGChunkWriter writer = new PNGChunkWriter(transaction.getChannel());
+            writer.writeSignature();
             for (PNGChunk chunk : chunks) {
-                // Write length
-                dos.writeInt(chunk.getLength());
+                writer.writeChunk(chunk);
+            }
+            writer.flush();
+
+            transaction.commit();
+        }
+    }
+
+    public interface ChunkData {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // Save textChunks to target, copying every other chunk of source without reading it into memory.
+    // Target may be the source file itself. Returns the index of the written file; encrypted text
+    // chunks are re-pointed at their copy in it, so their envelopes leave the heap.
+    // The key chunks of source are replaced by keyBlocks, written ahead of the text chunks.
+    public PNGIndex saveWithTextChunks(PNGIndex source, List<TextChunk> textChunks,
+                                       List<byte[]> keyBlocks, File target) throws IOException {
+        return save(source, textChunks, keyBlocks, null, 0, null, target);
+    }
+
+    // Like saveWithTextChunks, plus one chunk after the text chunks whose data is streamed in,
+    // so payloads such as an encrypted file never have to fit in memory
+    public PNGIndex saveWithStreamedChunk(PNGIndex source, List<TextChunk> textChunks, List<byte[]> keyBlocks,
+                                          String type, int length, ChunkData data, File target) throws IOException {
+        return save(source, textChunks, keyBlocks, type, length, data, target);
+    }
+
+    private PNGIndex save(PNGIndex source, List<TextChunk> textChunks, List<byte[]> keyBlocks,
+                          String streamedType, int streamedLength, ChunkData streamedData,
+                          File target) throws IOException {
+        // Layout of the output, mapped once the transaction has committed
+        List<PNGChunk> layout = new ArrayList<>();
+        int textStart;
+
+        try (SaveTransaction transaction = SaveTransaction.begin(target, syncPolicy)) {
+            // The source may be the target; no handle to it may be open while it is replaced,
+            // so it is closed before the commit
+            try (FileChannel in = FileChannel.open(source.getFile().toPath(), StandardOpenOption.READ)) {
+                PNGChunkWriter writer = new PNGChunkWriter(transaction.getChannel());
+                writer.writeSignature();
 
-                // Write type
-                dos.writeBytes(chunk.getType());
+                // Splice adjacent untouched chunks (IHDR ... IDAT) as one byte range
+                PNGChunk iend = null;
+                long runStart = -1;
+                long runEnd = -1;
+                long runTarget = -1;
+                for (PNGChunk chunk : source.getChunks()) {
+                    if ("IEND".equals(chunk.getType())) {
+                        iend = chunk;
+                        continue;
+                    }
+                    if (isTextChunk(chunk) || KEY_CHUNK_TYPE.equals(chunk.getType())) {
+                        continue;
+                    }
 
-                // Write data
-                if (chunk.getLength() > 0) {
-                    dos.write(chunk.getData());
+                    if (chunk.getOffset() < 0) {
+                        if (runStart >= 0) {
+                            writer.transferFrom(in, runStart, runEnd - runStart);
+                            runStart = -1;
+                        }
+                        long offset = writer.getPosition();
+                        int crc = writer.writeChunk(chunk);
+                        PNGChunk written = new PNGChunk(chunk.getLength(), chunk.getType(), null, offset, crc);
+                        written.setUnparsed(chunk.isUnparsed());
+                        layout.add(written);
+                        continue;
+                    }
+
+                    if (chunk.getOffset() != runEnd) {
+                        if (runStart >= 0) {
+                            writer.transferFrom(in, runStart, runEnd - runStart);
+                        }
+                        runStart = chunk.getOffset();
+                        runEnd = runStart;
+                        runTarget = writer.getPosition();
+                    }
+                    runEnd += 12L + chunk.getLength();
+                    PNGChunk copied = new PNGChunk(chunk.getLength(), chunk.getType(), null,
+                            runTarget + chunk.getOffset() - runStart, chunk.getCrc());
+                    copied.setUnparsed(chunk.isUnparsed());
+                    layout.add(copied);
+                }
+                if (runStart >= 0) {
+                    writer.transferFrom(in, runStart, runEnd - runStart);
+                }
+
+                for (byte[] keyBlock : keyBlocks) {
+                    long offset = writer.getPosition();
+                    int crc = writer.writeChunk(new PNGChunk(keyBlock.length, KEY_CHUNK_TYPE, keyBlock, 0));
+                    layout.add(new PNGChunk(keyBlock.length, KEY_CHUNK_TYPE, null, offset, crc));
+                }
+
+                // Only the text chunks are serialized; encrypted chunks still backed by the
+                // chunk they were read from are written straight from its mapping, behind a
+                // new envelope header if their key was re-wrapped
+                textStart = layout.size();
+                for (TextChunk textChunk : textChunks) {
+                    long offset = writer.getPosition();
+                    PNGChunk encryptedSource = textChunk.getEncryptedSource();
+                    if (encryptedSource != null && textChunk.getEncryptedHeader() != null) {
+                        ByteBuffer keyword = ByteBuffer.wrap((textChunk.getKeyword() + "\0").getBytes(StandardCharsets.US_ASCII));
+                        ByteBuffer header = ByteBuffer.wrap(textChunk.getEncryptedHeader());
+                        ByteBuffer body = textChunk.getEncryptedBody();
+                        int length = keyword.remaining() + header.remaining() + body.remaining();
+                        int crc = writer.writeChunk(ENCRYPTED_CHUNK_TYPE, keyword, header, body);
+                        layout.add(new PNGChunk(length, ENCRYPTED_CHUNK_TYPE, null, offset, crc));
+                        continue;
+                    }
+                    PNGChunk chunk = encryptedSource != null ? encryptedSource : createTextChunk(textChunk);
+                    int crc = writer.writeChunk(chunk);
+                    layout.add(new PNGChunk(chunk.getLength(), chunk.getType(), null, offset, crc));
+                }
+
+                if (streamedType != null) {
+                    long offset = writer.getPosition();
+                    PNGChunkWriter.ChunkOutputStream out = writer.openChunk(streamedType, streamedLength);
+                    streamedData.writeTo(out);
+                    out.close();
+                    layout.add(new PNGChunk(streamedLength, streamedType, null, offset, out.getCrc()));
                 }
 
-                // Calculate and write CRC
-                crc32.reset();
-                crc32.update(chunk.getType().getBytes(StandardCharsets.US_ASCII));
-                if (chunk.getData() != null) {
-                    crc32.update(chunk.getData());
+                if (iend != null) {
+                    long offset = writer.getPosition();
+                    int crc = writer.writeChunk(iend);
+                    layout.add(new PNGChunk(iend.getLength(), iend.getType(), null, offset, crc));
                 }
-                dos.writeInt((int)crc32.getValue());
+                writer.flush();
             }
+            transaction.commit();
         }
+
+        long size = target.length();
+        long lastModified = target.lastModified();
+        ByteBuffer buffer = map(target);
+        List<PNGChunk> chunks = new ArrayList<>(layout.size());
+        for (PNGChunk chunk : layout) {
+            PNGChunk mapped = new PNGChunk(chunk.getLength(), chunk.getType(), buffer, chunk.getOffset(), chunk.getCrc());
+            mapped.setUnparsed(chunk.isUnparsed());
+            chunks.add(mapped);
+        }
+
+        for (int i = 0; i < textChunks.size(); i++) {
+            TextChunk textChunk = textChunks.get(i);
+            if (textChunk.hasEncryptedData()) {
+                int keywordLength = textChunk.getKeyword().getBytes(StandardCharsets.US_ASCII).length;
+                textChunk.setEncryptedSource(chunks.get(textStart + i), keywordLength + 1);
+            }
+        }
+        return new PNGIndex(target, chunks, buffer, size, lastModified);
     }
 
-    public List<TextChunk> extractTextChunks(List<PNGChunk> pngChunks) {
+    public List<TextChunk> extractTextChunks(List<PNGChunk> pngChunks) throws IOException {
         List<TextChunk> textChunks = new ArrayList<>();
 
         for (PNGChunk chunk : pngChunks) {
-            if ("tEXt".equals(chunk.getType())) {
-                TextChunk textChunk = parseTextChunk(chunk.getData());
-                textChunks.add(textChunk);
+            try {
+                if ("tEXt".equals(chunk.getType())) {
+                    TextChunk textChunk = parseTextChunk(chunk.getData());
+                    textChunks.add(textChunk);
+                } else if ("zTXt".equals(chunk.getType())) {
+                    textChunks.add(parseCompressedTextChunk(chunk.getData()));
+                } else if (ENCRYPTED_CHUNK_TYPE.equals(chunk.getType())) {
+                    textChunks.add(parseEncryptedChunk(chunk));
+                }
+            } catch (IOException e) {
+                // One bad chunk does not make the file unopenable; it is kept as it is
+                System.err.println("Keeping unreadable " + chunk.getType() + " chunk at offset "
+                        + chunk.getOffset() + ": " + e.getMessage());
+                chunk.setUnparsed(true);
             }
         }
 
         return textChunks;
     }
 
+    // Data of every key chunk, in file order
+    public List<byte[]> extractKeyBlocks(List<PNGChunk> pngChunks) {
+        List<byte[]> keyBlocks = new ArrayList<>();
+        for (PNGChunk chunk : pngChunks) {
+            if (KEY_CHUNK_TYPE.equals(chunk.getType())) {
+                keyBlocks.add(chunk.getData());
+            }
+        }
+        return keyBlocks;
+    }
+
+    // Unparsed chunks are not text as far as saving goes: they are copied, not rewritten
+    private boolean isTextChunk(PNGChunk chunk) {
+        return !chunk.isUnparsed() && ("tEXt".equals(chunk.getType()) || "zTXt".equals(chunk.getType())
+                || ENCRYPTED_CHUNK_TYPE.equals(chunk.getType()));
+    }
+
     private TextChunk parseTextChunk(byte[] data) {
         int nullPos = -1;
         for (int i = 0; i < data.length; i++) {
@@ -101,7 +337,7 @@ public class PNGProcessor {
         if (nullPos > 0 && nullPos < data.length - 1) {
             String keyword = new String(data, 0, nullPos);
             String text = new String(data, nullPos + 1, data.length - nullPos - 1);
-            boolean isEncrypted = text.startsWith("ENC:") || text.startsWith("RSA:");
+            boolean isEncrypted = hasLegacyPrefix(data, nullPos + 1);
 
             return new TextChunk(keyword, text, isEncrypted);
         }
@@ -109,23 +345,170 @@ public class PNGProcessor {
         return new TextChunk("Comment", new String(data), false);
     }
 
+    private TextChunk parseCompressedTextChunk(byte[] data) throws IOException {
+        int nullPos = -1;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == 0) {
+                nullPos = i;
+                break;
+            }
+        }
+
+        // Keyword, null separator, compression method (0 = deflate), compressed text
+        if (nullPos <= 0 || nullPos + 1 >= data.length || data[nullPos + 1] != 0) {
+            throw new IOException("Invalid zTXt chunk");
+        }
+
+        String keyword = new String(data, 0, nullPos, StandardCharsets.US_ASCII);
+        byte[] textBytes = inflate(data, nullPos + 2, data.length - nullPos - 2);
+        String text = new String(textBytes, StandardCharsets.UTF_8);
+        boolean isEncrypted = hasLegacyPrefix(textBytes, 0);
+
+        TextChunk textChunk = new TextChunk(keyword, text, isEncrypted);
+        textChunk.setCompressed(true);
+        return textChunk;
+    }
+
+    // Text encrypted before the binary envelope starts with ENC: or RSA:; checked on the raw bytes
+    private static boolean hasLegacyPrefix(byte[] data, int offset) {
+        if (data.length - offset < 4 || data[offset + 3] != ':') {
+            return false;
+        }
+        return (data[offset] == 'E' && data[offset + 1] == 'N' && data[offset + 2] == 'C')
+                || (data[offset] == 'R' && data[offset + 1] == 'S' && data[offset + 2] == 'A');
+    }
+
+    // Only the keyword is read; the envelope stays in the chunk until it is decrypted
+    private TextChunk parseEncryptedChunk(PNGChunk chunk) throws IOException {
+        ByteBuffer data = chunk.getDataBuffer();
+        int nullPos = -1;
+        for (int i = 0; i < Math.min(data.limit(), 80); i++) {
+            if (data.get(i) == 0) {
+                nullPos = i;
+                break;
+            }
+        }
+
+        if (nullPos <= 0) {
+            throw new IOException("Invalid " + ENCRYPTED_CHUNK_TYPE + " chunk");
+        }
+
+        byte[] keyword = new byte[nullPos];
+        data.get(keyword);
+        TextChunk textChunk = new TextChunk(new String(keyword, StandardCharsets.US_ASCII), "", true);
+        textChunk.setEncryptedSource(chunk, nullPos + 1);
+        return textChunk;
+    }
+
+    // PNG keywords are 1 to 79 printable Latin-1 characters without leading, trailing or
+    // doubled spaces; chunks here write them as ASCII. Accents are dropped and anything
+    // else becomes '_', so a file name still reads as itself instead of turning into '?'
+    public static String toKeyword(String name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFKD);
+        StringBuilder keyword = new StringBuilder();
+        for (int i = 0, c; i < decomposed.length() && keyword.length() < 79; i += Character.charCount(c)) {
+            c = decomposed.codePointAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (c == ' ' && (keyword.length() == 0 || keyword.charAt(keyword.length() - 1) == ' ')) {
+                continue;
+            }
+            keyword.append(c >= 0x20 && c < 0x7F ? (char) c : '_');
+        }
+        while (keyword.length() > 0 && keyword.charAt(keyword.length() - 1) == ' ') {
+            keyword.setLength(keyword.length() - 1);
+        }
+        return keyword.length() > 0 ? keyword.toString() : "file";
+    }
+
     public PNGChunk createTextChunk(TextChunk textChunk) throws IOException {
+        byte[] keyword = textChunk.getKeyword().getBytes(StandardCharsets.US_ASCII);
+
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(textChunk.getKeyword().getBytes(StandardCharsets.US_ASCII));
+        baos.write(keyword);
         baos.write(0);
-        baos.write(textChunk.getText().getBytes(StandardCharsets.UTF_8));
+
+        // Ciphertext is stored as raw bytes and would not compress anyway
+        if (textChunk.hasEncryptedData()) {
+            baos.write(textChunk.getEncryptedData());
+
+            byte[] data = baos.toByteArray();
+            return new PNGChunk(data.length, ENCRYPTED_CHUNK_TYPE, data, 0);
+        }
+
+        byte[] text = textChunk.getText().getBytes(StandardCharsets.UTF_8);
+
+        // Text past what extractTextChunks inflates is stored plain, so it can be read back
+        if ((textChunk.isCompressed() || text.length >= compressionThreshold) && text.length <= MAX_INFLATED_TEXT) {
+            byte[] compressed = deflate(text, compressionLevel);
+            // Incompressible text, e.g. Base64 ciphertext, stays in a plain tEXt chunk
+            if (compressed.length + 1 < text.length) {
+                baos.write(0);
+                baos.write(compressed);
+
+                byte[] data = baos.toByteArray();
+                return new PNGChunk(data.length, "zTXt", data, 0);
+            }
+        }
+
+        baos.write(text);
 
         byte[] data = baos.toByteArray();
         return new PNGChunk(data.length, "tEXt", data, 0);
     }
 
+    private byte[] deflate(byte[] input, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                baos.write(buffer, 0, count);
+            }
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate(byte[] input, int offset, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, offset, length);
+
+            int initialSize = (int) Math.min(MAX_INFLATED_TEXT, Math.max(64L, length * 4L));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(initialSize);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated zTXt chunk");
+                }
+                if (baos.size() + count > MAX_INFLATED_TEXT) {
+                    throw new IOException("zTXt chunk inflates past " + MAX_INFLATED_TEXT + " bytes");
+                }
+                baos.write(buffer, 0, count);
+            }
+            return baos.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt zTXt chunk", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     public List<PNGChunk> buildPNGWithTextChunks(List<PNGChunk> originalChunks,
                                                  List<TextChunk> textChunks) throws IOException {
         List<PNGChunk> newChunks = new ArrayList<>();
 
         // Copy non-text chunks (except IEND)
         for (PNGChunk chunk : originalChunks) {
-            if (!"tEXt".equals(chunk.getType()) && !"IEND".equals(chunk.getType())) {
+            if (!isTextChunk(chunk) && !"IEND".equals(chunk.getType())) {
                 newChunks.add(chunk);
             }
         }
@@ -0,0 +1,136 @@
+package png;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Writes go to a sibling temp file which only replaces the target on commit,
+// so a crash mid-save leaves either the old or the new image, never half of one.
+public class SaveTransaction implements Closeable {
+    public enum SyncPolicy {
+        // Force the file and the directory entry of the rename
+        FULL,
+        // Force the file contents only
+        FILE,
+        // Leave flushing to the OS; the rename is still atomic
+        NONE
+    }
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final SyncPolicy syncPolicy;
+    private boolean committed;
+
+    private SaveTransaction(Path target, Path temp, FileChannel channel, SyncPolicy syncPolicy) {
+        this.target = target;
+        this.temp = temp;
+        this.channel = channel;
+        this.syncPolicy = syncPolicy;
+    }
+
+    public static SaveTransaction begin(File target, SyncPolicy syncPolicy) throws IOException {
+        Path targetPath = target.toPath().toAbsolutePath();
+        Path temp = createTemp(targetPath);
+        try {
+            FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            return new SaveTransaction(targetPath, temp, channel, syncPolicy);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // Not Files.createTempFile, which makes the file private (0600); created like any new file,
+    // a save to a new path gets the umask's permissions
+    private static Path createTemp(Path target) throws IOException {
+        while (true) {
+            Path temp = target.resolveSibling("." + target.getFileName() + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                // Name taken; draw another
+            }
+        }
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public void commit() throws IOException {
+        if (syncPolicy != SyncPolicy.NONE) {
+            channel.force(true);
+        }
+        channel.close();
+        // Applied last, so a read-only target does not make the temp file unwritable
+        copyAttributes(target, temp);
+
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+
+        if (syncPolicy == SyncPolicy.FULL) {
+            syncDirectory(target.getParent());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            try {
+                channel.close();
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    // The replacement keeps the target's permissions, owner and group where the file system
+    // has them
+    private static void copyAttributes(Path target, Path temp) throws IOException {
+        if (!Files.exists(target)) {
+            return;
+        }
+        PosixFileAttributeView posix = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+        if (posix != null) {
+            PosixFileAttributes attributes = Files.readAttributes(target, PosixFileAttributes.class);
+            try {
+                posix.setOwner(attributes.owner());
+            } catch (IOException e) {
+                // Only root may give a file away; the group and permissions are still copied
+            }
+            try {
+                posix.setGroup(attributes.group());
+            } catch (IOException e) {
+                // Not a member of the target's group
+            }
+            posix.setPermissions(attributes.permissions());
+            return;
+        }
+        AclFileAttributeView acl = Files.getFileAttributeView(temp, AclFileAttributeView.class);
+        if (acl != null) {
+            acl.setAcl(Files.getFileAttributeView(target, AclFileAttributeView.class).getAcl());
+        }
+        DosFileAttributeView dos = Files.getFileAttributeView(temp, DosFileAttributeView.class);
+        if (dos != null) {
+            DosFileAttributes attributes = Files.readAttributes(target, DosFileAttributes.class);
+            dos.setHidden(attributes.isHidden());
+            dos.setArchive(attributes.isArchive());
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory for syncing
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ui;
+
+import cipher.RSAManager;
+import cipher.SessionKey;
+import model.TextChunk;
+
+import javax.swing.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+// Encrypts or decrypts a batch of chunks on a pool with one thread per core. Workers only
+// compute envelopes and plain text from a snapshot taken on the EDT; the chunks themselves
+// are changed on the EDT, a batch at a time, so the list is refreshed once per batch and a
+// cancelled run leaves every chunk it did not reach as it was. A result is dropped if its
+// chunk was removed or changed after the snapshot.
+class ChunkCryptoTask extends SwingWorker<Void, ChunkCryptoTask.Outcome> {
+    enum Mode { ENCRYPT, DECRYPT }
+
+    // What a worker reads of a chunk, copied on the EDT
+    private static class Snapshot {
+        final int index;
+        final TextChunk chunk;
+        final String text;
+        // Null for legacy ENC: text
+        final ByteBuffer envelope;
+
+        Snapshot(int index, TextChunk chunk) {
+            this.index = index;
+            this.chunk = chunk;
+            this.text = chunk.getText();
+            this.envelope = chunk.hasEncryptedData() ? chunk.getEncryptedBuffer() : null;
+        }
+
+        // Whether the chunk at this index is still the one the snapshot was taken of, unchanged
+        boolean isCurrent(List<TextChunk> chunks, Mode mode) {
+            if (index >= chunks.size() || chunks.get(index) != chunk
+                    || chunk.isEncrypted() != (mode == Mode.DECRYPT) || !Objects.equals(chunk.getText(), text)) {
+                return false;
+            }
+            if (envelope == null) {
+                return !chunk.hasEncryptedData();
+            }
+            return chunk.hasEncryptedData() && chunk.getEncryptedBuffer().equals(envelope);
+        }
+    }
+
+    static class Outcome {
+        final Snapshot snapshot;
+        final byte[] envelope;
+        final String plainText;
+        final String error;
+
+        Outcome(Snapshot snapshot, byte[] envelope, String plainText, String error) {
+            this.snapshot = snapshot;
+            this.envelope = envelope;
+            this.plainText = plainText;
+            this.error = error;
+        }
+    }
+
+    private final DoroFrame parent;
+    private final Mode mode;
+    private final List<TextChunk> chunks;
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    private final RSAManager rsaManager;
+    // New envelopes go under writeKey; decryption looks keys up in sessionKeys
+    private final SessionKey writeKey;
+    private final List<SessionKey> sessionKeys;
+
+    private int completed;
+    private int failed;
+    private int stale;
+
+    ChunkCryptoTask(DoroFrame parent, Mode mode, List<TextChunk> chunks, List<Integer> indexes,
+                    RSAManager rsaManager, SessionKey writeKey, List<SessionKey> sessionKeys) {
+        this.parent = parent;
+        this.mode = mode;
+        this.chunks = chunks;
+        for (int index : indexes) {
+            snapshots.add(new Snapshot(index, chunks.get(index)));
+        }
+        this.rsaManager = rsaManager;
+        this.writeKey = writeKey;
+        this.sessionKeys = sessionKeys;
+    }
+
+    int getTotal() {
+        return snapshots.size();
+    }
+
+    List<TextChunk> getChunks() {
+        return chunks;
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            CompletionService<Outcome> results = new ExecutorCompletionService<>(pool);
+            for (Snapshot snapshot : snapshots) {
+                results.submit(() -> run(snapshot));
+            }
+            for (int i = 0; i < snapshots.size() && !isCancelled(); i++) {
+                publish(results.take().get());
+            }
+        } finally {
+            // Interrupts the workers still running and drops the queued ones
+            pool.shutdownNow();
+        }
+        return null;
+    }
+
+    private Outcome run(Snapshot snapshot) {
+        try {
+            if (mode == Mode.ENCRYPT) {
+                return new Outcome(snapshot, rsaManager.encryptToEnvelope(snapshot.text, writeKey), null, null);
+            }
+            String plainText = snapshot.envelope != null
+                    ? rsaManager.decryptEnvelope(snapshot.envelope, sessionKeys)
+                    : rsaManager.decrypt(snapshot.text);
+            return new Outcome(snapshot, null, plainText, null);
+        } catch (Exception e) {
+            return new Outcome(snapshot, null, null, String.valueOf(e.getMessage()));
+        }
+    }
+
+    @Override
+    protected void process(List<Outcome> outcomes) {
+        List<Integer> updated = new ArrayList<>(outcomes.size());
+        for (Outcome outcome : outcomes) {
+            completed++;
+            int index = outcome.snapshot.index;
+            if (outcome.error != null) {
+                failed++;
+                parent.log("Failed to " + (mode == Mode.ENCRYPT ? "encrypt" : "decrypt")
+                        + " chunk " + (index + 1) + ": " + outcome.error);
+                continue;
+            }
+            if (!outcome.snapshot.isCurrent(chunks, mode)) {
+                stale++;
+                continue;
+            }
+
+            TextChunk chunk = outcome.snapshot.chunk;
+            if (mode == Mode.ENCRYPT) {
+                chunk.setEncryptedData(outcome.envelope);
+            } else {
+                chunk.setEncryptedData(null);
+                chunk.setText(outcome.plainText);
+                chunk.setEncrypted(false);
+            }
+            updated.add(index);
+        }
+        parent.chunkTaskProgress(this, completed, updated);
+    }
+
+    @Override
+    protected void done() {
+        String verb = mode == Mode.ENCRYPT ? "Encrypted " : "Decrypted ";
+        String summary = verb + (completed - failed - stale) + " of " + snapshots.size() + " chunks";
+        if (failed > 0) {
+            summary += ", " + failed + " failed";
+        }
+        if (stale > 0) {
+            summary += ", " + stale + " skipped as changed meanwhile";
+        }
+        if (isCancelled()) {
+            summary += " (cancelled)";
+        }
+        parent.chunkTaskFinished(this, summary);
+    }
+}
@@ -1,5 +1,6 @@
 package ui;
 
+import cipher.RSAManager;
 import doro.DoroStyle;
 import model.TextChunk;
 
@@ -7,6 +8,8 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static doro.DoroStyle.*;
@@ -14,6 +17,8 @@ import static doro.DoroStyle.*;
 public class ChunkPanel extends JPanel {
     private JList<String> chunkList;
     private DefaultListModel<String> chunkListModel;
+    // Buttons and menu items that change chunks, switched off while a background task runs
+    private final List<AbstractButton> editActions = new ArrayList<>();
     private final DoroFrame parent;
 
     public ChunkPanel(DoroFrame parent) {
@@ -53,7 +58,7 @@ public class ChunkPanel extends JPanel {
                     label.setFont(FONT_SUBTITLE);
                 } else {
                     label.setBackground(DORO_WHITE);
-                    if (value.toString().contains("[ENCRYPTED]")) {
+                    if (value.toString().contains("[ENCRYPTED]") || value.toString().contains("[FILE]")) {
                         label.setForeground(ERROR_RED);
                         label.setFont(FONT_ITALIC);
                     } else {
@@ -125,6 +130,8 @@ public class ChunkPanel extends JPanel {
         encryptItem.addActionListener(e -> encryptSelectedChunk());
         decryptItem.addActionListener(e -> decryptSelectedChunk());
 
+        Collections.addAll(editActions, addItem, duplicateItem, deleteItem, encryptItem, decryptItem);
+
         popupMenu.add(addItem);
         popupMenu.add(duplicateItem);
         popupMenu.addSeparator();
@@ -149,6 +156,8 @@ public class ChunkPanel extends JPanel {
         deleteButton.addActionListener(e -> deleteChunk());
         clearButton.addActionListener(e -> clearAllChunks());
 
+        Collections.addAll(editActions, addButton, deleteButton, clearButton);
+
         buttonPanel.add(addButton);
         buttonPanel.add(deleteButton);
         buttonPanel.add(clearButton);
@@ -156,22 +165,17 @@ public class ChunkPanel extends JPanel {
         return buttonPanel;
     }
 
+    public void setEditingEnabled(boolean enabled) {
+        for (AbstractButton action : editActions) {
+            action.setEnabled(enabled);
+        }
+    }
 
     public void updateChunkList(List<TextChunk> chunks) {
         chunkListModel.clear();
 
         for (int i = 0; i < chunks.size(); i++) {
-            TextChunk chunk = chunks.get(i);
-            String displayText = String.format("[%d] ", i + 1);
-
-            if (chunk.isEncrypted()) {
-                displayText += "[ENCRYPTED] ";
-                displayText += chunk.getDisplayText(20);
-            } else {
-                displayText += chunk.getDisplayText(40);
-            }
-
-            chunkListModel.addElement(displayText);
+            chunkListModel.addElement(displayText(i, chunks.get(i)));
         }
 
         if (!chunks.isEmpty()) {
@@ -180,6 +184,36 @@ public class ChunkPanel extends JPanel {
         }
     }
 
+    // Refreshes just these rows, e.g. a batch finished by a bulk operation
+    public void updateChunks(List<Integer> indexes) {
+        List<TextChunk> chunks = parent.getTextChunks();
+        boolean selectedChanged = false;
+        for (int index : indexes) {
+            if (index < chunkListModel.size() && index < chunks.size()) {
+                chunkListModel.set(index, displayText(index, chunks.get(index)));
+                selectedChanged |= index == chunkList.getSelectedIndex();
+            }
+        }
+        if (selectedChanged) {
+            loadSelectedChunk();
+        }
+    }
+
+    private String displayText(int index, TextChunk chunk) {
+        String displayText = String.format("[%d] ", index + 1);
+
+        if (RSAManager.isHiddenFile(chunk)) {
+            displayText += "[FILE] ";
+            displayText += chunk.getKeyword();
+        } else if (chunk.isEncrypted()) {
+            displayText += "[ENCRYPTED] ";
+            displayText += chunk.getDisplayText(20);
+        } else {
+            displayText += chunk.getDisplayText(40);
+        }
+        return displayText;
+    }
+
     private void loadSelectedChunk() {
         int index = chunkList.getSelectedIndex();
         List<TextChunk> chunks = parent.getTextChunks();
@@ -191,6 +225,8 @@ public class ChunkPanel extends JPanel {
     }
 
     public void addChunk() {
+        if (!parent.canChangeChunks()) return;
+
         // Create custom dialog with better styling
         JDialog dialog = new JDialog(parent, "Add Text Chunk", true);
         dialog.setLayout(new BorderLayout());
@@ -286,6 +322,8 @@ public class ChunkPanel extends JPanel {
 
 
     public void deleteChunk() {
+        if (!parent.canChangeChunks()) return;
+
         int index = chunkList.getSelectedIndex();
         List<TextChunk> chunks = parent.getTextChunks();
 
@@ -312,6 +350,8 @@ public class ChunkPanel extends JPanel {
     }
 
     private void duplicateChunk() {
+        if (!parent.canChangeChunks()) return;
+
         int index = chunkList.getSelectedIndex();
         List<TextChunk> chunks = parent.getTextChunks();
 
@@ -322,6 +362,10 @@ public class ChunkPanel extends JPanel {
                     original.getText(),
                     original.isEncrypted()
             );
+            duplicate.setCompressed(original.isCompressed());
+            if (original.hasEncryptedData()) {
+                duplicate.setEncryptedData(original.getEncryptedData());
+            }
 
             chunks.add(index + 1, duplicate);
             updateChunkList(chunks);
@@ -332,6 +376,8 @@ public class ChunkPanel extends JPanel {
     }
 
     public void clearAllChunks() {
+        if (!parent.canChangeChunks()) return;
+
         List<TextChunk> chunks = parent.getTextChunks();
 
         if (!chunks.isEmpty()) {
@@ -351,6 +397,8 @@ public class ChunkPanel extends JPanel {
     }
 
     private void encryptSelectedChunk() {
+        if (!parent.canChangeChunks()) return;
+
         int index = chunkList.getSelectedIndex();
         List<TextChunk> chunks = parent.getTextChunks();
 
@@ -358,9 +406,7 @@ public class ChunkPanel extends JPanel {
             TextChunk chunk = chunks.get(index);
             if (!chunk.isEncrypted()) {
                 try {
-                    String encrypted = parent.getRSAManager().encrypt(chunk.getText());
-                    chunk.setText(encrypted);
-                    chunk.setEncrypted(true);
+                    parent.encryptChunk(chunk);
                     updateChunkList(chunks);
                     parent.log("Encrypted chunk " + (index + 1));
                 } catch (Exception e) {
@@ -374,16 +420,21 @@ public class ChunkPanel extends JPanel {
     }
 
     private void decryptSelectedChunk() {
+        if (!parent.canChangeChunks()) return;
+
         int index = chunkList.getSelectedIndex();
         List<TextChunk> chunks = parent.getTextChunks();
 
         if (index >= 0 && index < chunks.size()) {
             TextChunk chunk = chunks.get(index);
-            if (chunk.isEncrypted()) {
+            if (RSAManager.isHiddenFile(chunk)) {
+                JOptionPane.showMessageDialog(parent,
+                        "This chunk holds a hidden file. Use Security > Extract Hidden File to save it.",
+                        "Hidden File",
+                        JOptionPane.INFORMATION_MESSAGE);
+            } else if (chunk.isEncrypted()) {
                 try {
-                    String decrypted = parent.getRSAManager().decrypt(chunk.getText());
-                    chunk.setText(decrypted);
-                    chunk.setEncrypted(false);
+                    parent.decryptChunk(chunk);
                     updateChunkList(chunks);
                     parent.log("Decrypted chunk " + (index + 1));
                 } catch (Exception e) {
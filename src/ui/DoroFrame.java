@@ -13,8 +13,11 @@ import java.awt.image.BufferedImage;
 import java.awt.dnd.*;
 import java.awt.datatransfer.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 
 public class DoroFrame extends JFrame {
     // UI Components
@@ -23,29 +26,138 @@ public class DoroFrame extends JFrame {
     private ImagePreviewPanel imagePreviewPanel;
     private QuickActionsPanel quickActionsPanel;
     private JTextArea logArea;
+    private JPanel progressPanel;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
 
     // Data
     private File currentFile;
+    private PNGIndex chunkIndex;
     private List<TextChunk> textChunks;
-    private final RSAManager rsaManager;
+    // Session keys of the loaded file, and the one new encryptions go under
+    private List<SessionKey> sessionKeys;
+    private SessionKey writeKey;
+    // Keys are loaded or generated off the EDT; actions that need them wait for this
+    private final CompletableFuture<RSAManager> rsaManagerFuture;
     private final PNGProcessor pngProcessor;
 
+    // Auto-save requests arriving within this window share one durable save
+    private static final int AUTO_SAVE_DELAY = 750;
+    private final javax.swing.Timer autoSaveTimer;
+
+    // Chunk parsing and preview decoding of the file being opened run here side by side, as do
+    // hiding and extracting files; a cached pool, so a newer open never waits behind a stale decode
+    private static final ExecutorService FILE_IO = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "png-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Bumped by every open; loader threads check it before each step, and results of an older
+    // load are dropped when they arrive
+    private volatile int loadGeneration;
+    private CompletableFuture<LoadedChunks> chunkLoad;
+    private CompletableFuture<PreviewImage> imageLoad;
+    private PreviewImage.Opener imageOpener;
+    // False until the chunks of the current file are in place, so a save cannot write another
+    // file's chunks (or none) into it
+    private boolean chunksReady = true;
+
+    private static class LoadedChunks {
+        final PNGIndex index;
+        final List<TextChunk> textChunks;
+        final List<SessionKey> sessionKeys;
+
+        LoadedChunks(PNGIndex index, List<TextChunk> textChunks, List<SessionKey> sessionKeys) {
+            this.index = index;
+            this.textChunks = textChunks;
+            this.sessionKeys = sessionKeys;
+        }
+    }
+
+    // What a background task rewriting the file or its chunks is doing, null when idle. Until it
+    // is done the chunks cannot be edited, saved, or replaced by opening another file
+    private String chunksBusy;
+
+    // Bulk encryption or decryption in progress, if any
+    private ChunkCryptoTask chunkTask;
+
+    // Filled in once the keys are ready
+    private JMenu keyWrapperMenu;
+    private JMenu contentCipherMenu;
+    // Security actions that need the keys; disabled until they have loaded
+    private final List<JMenuItem> keyActions = new ArrayList<>();
 
     public DoroFrame() {
-        rsaManager = new RSAManager();
+        rsaManagerFuture = CompletableFuture.supplyAsync(RSAManager::new);
         pngProcessor = new PNGProcessor();
         textChunks = new ArrayList<>();
+        sessionKeys = new ArrayList<>();
+
+        autoSaveTimer = new javax.swing.Timer(AUTO_SAVE_DELAY, e -> saveFile());
+        autoSaveTimer.setRepeats(false);
 
         initializeGUI();
         setupDragAndDrop();
         applyTheme();
 
-        log("Dorothy started - RSA keys ready!");
+        log("Dorothy started - loading keys...");
+        rsaManagerFuture.whenComplete((manager, error) -> SwingUtilities.invokeLater(() -> keysReady(manager, error)));
+    }
+
+    private void keysReady(RSAManager manager, Throwable error) {
+        if (error != null) {
+            log("Error loading keys: " + error.getMessage());
+            return;
+        }
+
+        ButtonGroup keyWrapperGroup = new ButtonGroup();
+        for (byte id : new byte[] {KeyWrapper.RSA, KeyWrapper.X25519}) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(manager.keyWrapper(id).getName());
+            item.setSelected(manager.getKeyWrapper().getId() == id);
+            item.addActionListener(e -> selectKeyWrapper(id));
+            keyWrapperGroup.add(item);
+            keyWrapperMenu.add(item);
+        }
+        ButtonGroup contentCipherGroup = new ButtonGroup();
+        for (ContentCipher cipher : ContentCipher.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(cipher.getDisplayName());
+            item.setSelected(manager.getContentCipher() == cipher);
+            item.addActionListener(e -> selectContentCipher(cipher));
+            contentCipherGroup.add(item);
+            contentCipherMenu.add(item);
+        }
+        keyWrapperMenu.setEnabled(true);
+        contentCipherMenu.setEnabled(true);
+        for (JMenuItem item : keyActions) {
+            item.setEnabled(true);
+        }
+
+        log("RSA keys ready!");
+        log("Content cipher: " + manager.getContentCipher().getDisplayName() + " (fastest on this machine)");
+    }
+
+    // Never waits on the EDT: key-dependent menu items stay disabled until the keys are ready,
+    // and panel actions that get here earlier are refused with this message
+    private RSAManager rsaManager() {
+        if (!rsaManagerFuture.isDone()) {
+            throw new IllegalStateException("Keys are still loading; try again in a moment");
+        }
+        try {
+            return rsaManagerFuture.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Keys unavailable: " + e.getCause().getMessage(), e.getCause());
+        }
     }
 
     private void initializeGUI() {
         setTitle("Dorothy - PNG Text Editor");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                flushAutoSave();
+            }
+        });
 
         // Use custom icon if available
         try {
@@ -117,7 +229,10 @@ public class DoroFrame extends JFrame {
         saveItem.addActionListener(e -> saveFile());
         saveAsItem.addActionListener(e -> saveFileAs());
         exitItem.addActionListener(e -> {
-            if (confirmExit()) System.exit(0);
+            if (confirmExit()) {
+                flushAutoSave();
+                System.exit(0);
+            }
         });
 
         fileMenu.add(openItem);
@@ -149,23 +264,48 @@ public class DoroFrame extends JFrame {
 
         JMenuItem generateKeysItem = createMenuItem("Generate New Keys", KeyEvent.VK_G);
         JMenuItem exportPublicItem = createMenuItem("Export Public Key", KeyEvent.VK_E);
-        JMenuItem importPublicItem = createMenuItem("Import Public Key", KeyEvent.VK_I);
+        JMenuItem importPublicItem = createMenuItem("Add Recipient Public Key", KeyEvent.VK_I);
+        JMenuItem clearRecipientsItem = createMenuItem("Clear Recipients", 0);
+        JMenuItem importKeyPairItem = createMenuItem("Add Old Key Pair to Keyring...", 0);
+        keyWrapperMenu = new JMenu("Key Algorithm");
+        keyWrapperMenu.setEnabled(false);
+        contentCipherMenu = new JMenu("Content Cipher");
+        contentCipherMenu.setEnabled(false);
         JMenuItem encryptAllItem = createMenuItem("Encrypt All Chunks", 0);
         JMenuItem decryptAllItem = createMenuItem("Decrypt All Chunks", 0);
+        JMenuItem hideFileItem = createMenuItem("Hide File...", 0);
+        JMenuItem extractFileItem = createMenuItem("Extract Hidden File...", 0);
 
         generateKeysItem.addActionListener(e -> generateNewKeys());
         exportPublicItem.addActionListener(e -> exportPublicKey());
         importPublicItem.addActionListener(e -> importPublicKey());
+        clearRecipientsItem.addActionListener(e -> clearRecipients());
+        importKeyPairItem.addActionListener(e -> importKeyPair());
         encryptAllItem.addActionListener(e -> encryptAllChunks());
         decryptAllItem.addActionListener(e -> decryptAllChunks());
+        hideFileItem.addActionListener(e -> hideFile());
+        extractFileItem.addActionListener(e -> extractHiddenFile());
+
+        Collections.addAll(keyActions, generateKeysItem, exportPublicItem, importPublicItem, clearRecipientsItem,
+                importKeyPairItem, encryptAllItem, decryptAllItem, hideFileItem, extractFileItem);
+        for (JMenuItem item : keyActions) {
+            item.setEnabled(false);
+        }
 
         securityMenu.add(generateKeysItem);
+        securityMenu.add(keyWrapperMenu);
+        securityMenu.add(contentCipherMenu);
         securityMenu.addSeparator();
         securityMenu.add(exportPublicItem);
         securityMenu.add(importPublicItem);
+        securityMenu.add(clearRecipientsItem);
+        securityMenu.add(importKeyPairItem);
         securityMenu.addSeparator();
         securityMenu.add(encryptAllItem);
         securityMenu.add(decryptAllItem);
+        securityMenu.addSeparator();
+        securityMenu.add(hideFileItem);
+        securityMenu.add(extractFileItem);
 
         // Help menu
         JMenu helpMenu = new JMenu("Help");
@@ -255,6 +395,25 @@ public class DoroFrame extends JFrame {
 
         panel.add(scrollPane, BorderLayout.CENTER);
 
+        // Shown while a bulk operation runs
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setForeground(DoroStyle.DORO_PINK);
+        cancelButton = DoroStyle.createSmallButton("Cancel", DoroStyle.DORO_PURPLE);
+        cancelButton.addActionListener(e -> {
+            if (chunkTask != null) {
+                chunkTask.cancel(true);
+            }
+        });
+
+        progressPanel = new JPanel(new BorderLayout(10, 0));
+        progressPanel.setOpaque(false);
+        progressPanel.setBorder(BorderFactory.createEmptyBorder(0, 0, 5, 0));
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.EAST);
+        progressPanel.setVisible(false);
+        panel.add(progressPanel, BorderLayout.NORTH);
+
         return panel;
     }
 
@@ -278,6 +437,10 @@ public class DoroFrame extends JFrame {
                     if (!files.isEmpty()) {
                         File file = files.get(0);
                         if (file.getName().toLowerCase().endsWith(".png")) {
+                            if (!canChangeChunks()) {
+                                return;
+                            }
+                            flushAutoSave();
                             currentFile = file;
                             loadPNG();
                             quickActionsPanel.updateFileInfo(file);
@@ -340,139 +503,513 @@ public class DoroFrame extends JFrame {
         });
     }
 
+    // Checked by every action that changes the chunks or the file
+    boolean canChangeChunks() {
+        if (chunksBusy != null) {
+            log("Wait for " + chunksBusy + " to finish");
+            return false;
+        }
+        return true;
+    }
+
+    private void setChunksBusy(String task) {
+        chunksBusy = task;
+        chunkPanel.setEditingEnabled(task == null);
+        textEditorPanel.setEditingEnabled(task == null);
+    }
+
     // File operations
     public void openFile() {
+        if (!canChangeChunks()) return;
+
         JFileChooser chooser = new JFileChooser();
         chooser.setFileFilter(new FileNameExtensionFilter("PNG Images", "png"));
 
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            flushAutoSave();
             currentFile = chooser.getSelectedFile();
             loadPNG();
             quickActionsPanel.updateFileInfo(currentFile);
         }
     }
 
+    // The chunk list is shown as soon as it is parsed; the preview follows when decoded.
+    // Opening another file meanwhile skips the steps not yet started, aborts the preview
+    // decode and ignores whatever still finishes
     public void loadPNG() {
         if (currentFile == null) return;
 
-        try {
-            List<PNGChunk> chunks = pngProcessor.readPNGChunks(currentFile);
-            textChunks = pngProcessor.extractTextChunks(chunks);
+        File file = currentFile;
+        int generation = ++loadGeneration;
+        cancelLoad();
 
-            chunkPanel.updateChunkList(textChunks);
-            imagePreviewPanel.loadImage(currentFile);
+        chunksReady = false;
+        chunkIndex = null;
+        textChunks = new ArrayList<>();
+        sessionKeys = new ArrayList<>();
+        writeKey = null;
+        chunkPanel.updateChunkList(textChunks);
+        imagePreviewPanel.showLoading(file);
+        Dimension viewport = imagePreviewPanel.getViewportSize();
+        PreviewImage.Opener opener = new PreviewImage.Opener();
+        imageOpener = opener;
+
+        // The file is mapped once; the chunk parser and the decoder both read that mapping
+        CompletableFuture<PNGIndex> indexLoad = CompletableFuture.supplyAsync(() -> {
+            checkGeneration(generation);
+            try {
+                return pngProcessor.readIndex(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, FILE_IO);
 
-            log("Loaded " + textChunks.size() + " chunks from " + currentFile.getName());
-        } catch (Exception e) {
-            log("Error loading PNG: " + e.getMessage());
+        chunkLoad = indexLoad.thenApplyAsync(index -> {
+            checkGeneration(generation);
+            return readChunks(index);
+        }, FILE_IO);
+        chunkLoad.whenComplete((loaded, error) ->
+                SwingUtilities.invokeLater(() -> chunksLoaded(generation, file, loaded, error)));
+
+        imageLoad = indexLoad.thenApplyAsync(index -> {
+            checkGeneration(generation);
+            try {
+                return opener.open(index.getBuffer(), viewport.width, viewport.height);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, FILE_IO);
+        imageLoad.whenComplete((image, error) ->
+                SwingUtilities.invokeLater(() -> imageLoaded(generation, image, error)));
+    }
+
+    private void cancelLoad() {
+        if (chunkLoad != null) {
+            chunkLoad.cancel(false);
+        }
+        if (imageLoad != null) {
+            imageLoad.cancel(false);
+        }
+        // Cancelling the future does not stop a decode already running
+        if (imageOpener != null) {
+            imageOpener.abort();
+        }
+    }
+
+    // Runs on a loader thread; stops work for a file another open has replaced
+    private void checkGeneration(int generation) {
+        if (generation != loadGeneration) {
+            throw new CancellationException();
+        }
+    }
+
+    // Runs on a loader thread
+    private LoadedChunks readChunks(PNGIndex index) {
+        try {
+            return new LoadedChunks(index, pngProcessor.extractTextChunks(index.getChunks()),
+                    readSessionKeys(index.getChunks()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void chunksLoaded(int generation, File file, LoadedChunks loaded, Throwable error) {
+        if (generation != loadGeneration) {
+            return;
+        }
+        if (error != null) {
+            String message = cause(error).getMessage();
+            log("Error loading PNG: " + message);
             JOptionPane.showMessageDialog(this,
-                    "Error loading PNG: " + e.getMessage(),
+                    "Error loading PNG: " + message,
                     "Error",
                     JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        chunkIndex = loaded.index;
+        textChunks = loaded.textChunks;
+        sessionKeys = loaded.sessionKeys;
+        chunksReady = true;
+
+        chunkPanel.updateChunkList(textChunks);
+        log("Loaded " + textChunks.size() + " chunks from " + file.getName());
+
+        int unreadable = 0;
+        for (PNGChunk chunk : loaded.index.getChunks()) {
+            if (chunk.isUnparsed()) {
+                unreadable++;
+            }
+        }
+        if (unreadable > 0) {
+            log("Warning: " + unreadable + " text chunk(s) could not be read; they are not shown "
+                    + "but are kept in the file unchanged");
+        }
+    }
+
+    private void imageLoaded(int generation, PreviewImage image, Throwable error) {
+        if (generation != loadGeneration) {
+            return;
+        }
+        if (error != null) {
+            imagePreviewPanel.showError();
+            log("Error loading image preview: " + cause(error).getMessage());
+            return;
+        }
+        imagePreviewPanel.showImage(image);
+    }
+
+    private static Throwable cause(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof UncheckedIOException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    public void scheduleAutoSave() {
+        autoSaveTimer.restart();
+    }
+
+    private void flushAutoSave() {
+        if (autoSaveTimer.isRunning()) {
+            saveFile();
         }
     }
 
     public void saveFile() {
+        if (!canChangeChunks()) return;
+
+        autoSaveTimer.stop();
         if (currentFile == null) {
             saveFileAs();
             return;
         }
 
-        try {
-            List<PNGChunk> originalChunks = pngProcessor.readPNGChunks(currentFile);
-            List<PNGChunk> newChunks = pngProcessor.buildPNGWithTextChunks(originalChunks, textChunks);
-            pngProcessor.writePNGChunks(currentFile, newChunks);
-
-            log("Saved " + textChunks.size() + " chunks to " + currentFile.getName());
-        } catch (Exception e) {
-            log("Error saving file: " + e.getMessage());
-        }
+        saveTo(currentFile);
     }
 
     public void saveFileAs() {
+        if (!canChangeChunks()) return;
+
         JFileChooser chooser = new JFileChooser();
         chooser.setSelectedFile(new File("output.png"));
         chooser.setFileFilter(new FileNameExtensionFilter("PNG Images", "png"));
 
         if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File oldFile = currentFile;
-            currentFile = chooser.getSelectedFile();
+            flushAutoSave();
+            File target = chooser.getSelectedFile();
 
-            if (!currentFile.getName().toLowerCase().endsWith(".png")) {
-                currentFile = new File(currentFile.getAbsolutePath() + ".png");
+            if (!target.getName().toLowerCase().endsWith(".png")) {
+                target = new File(target.getAbsolutePath() + ".png");
             }
 
-            if (oldFile != null && !currentFile.equals(oldFile)) {
-                try {
-                    java.nio.file.Files.copy(oldFile.toPath(), currentFile.toPath(),
-                            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    log("Error copying file: " + e.getMessage());
+            // Written in one pass from the loaded file, no intermediate copy
+            if (saveTo(target)) {
+                currentFile = target;
+                quickActionsPanel.updateFileInfo(currentFile);
+            }
+        }
+    }
+
+    // The index from the last load or save is reused while its file is unchanged
+    private PNGIndex currentIndex() throws IOException {
+        if (!chunksReady) {
+            throw new IOException("Chunks of " + currentFile.getName() + " are not loaded");
+        }
+        if (chunkIndex == null || !chunkIndex.isCurrent()) {
+            File source = chunkIndex != null ? chunkIndex.getFile() : currentFile;
+            if (source == null || !source.exists()) {
+                throw new IOException("No PNG image loaded");
+            }
+            chunkIndex = pngProcessor.readIndex(source);
+        }
+        return chunkIndex;
+    }
+
+    private boolean saveTo(File target) {
+        try {
+            chunkIndex = pngProcessor.saveWithTextChunks(currentIndex(), textChunks, keyBlocks(), target);
+
+            log("Saved " + textChunks.size() + " chunks to " + target.getName());
+            textEditorPanel.saveFinished(null);
+            return true;
+        } catch (Exception e) {
+            log("Error saving file: " + e.getMessage());
+            textEditorPanel.saveFinished(e.getMessage());
+            return false;
+        }
+    }
+
+    private List<SessionKey> readSessionKeys(List<PNGChunk> chunks) {
+        List<SessionKey> keys = new ArrayList<>();
+        for (byte[] keyBlock : pngProcessor.extractKeyBlocks(chunks)) {
+            try {
+                keys.add(SessionKey.fromBlock(ByteBuffer.wrap(keyBlock)));
+            } catch (IllegalArgumentException e) {
+                log("Skipped key chunk: " + e.getMessage());
+            }
+        }
+        return keys;
+    }
+
+    // Only session keys still referenced by an encrypted chunk are written back
+    private List<byte[]> keyBlocks() {
+        List<byte[]> keyBlocks = new ArrayList<>();
+        for (SessionKey sessionKey : sessionKeys) {
+            for (TextChunk chunk : textChunks) {
+                if (chunk.hasEncryptedData()
+                        && sessionKey.hasKeyId(RSAManager.sessionKeyId(chunk.getEncryptedBuffer()))) {
+                    keyBlocks.add(sessionKey.toBlock());
+                    break;
                 }
             }
+        }
+        return keyBlocks;
+    }
 
-            saveFile();
-            quickActionsPanel.updateFileInfo(currentFile);
+    // Created on first use, so a whole batch of chunks costs a single RSA wrap
+    private SessionKey writeKey() throws Exception {
+        if (writeKey == null) {
+            writeKey = rsaManager().createSessionKey();
+            sessionKeys.add(writeKey);
         }
+        return writeKey;
+    }
+
+    public void encryptChunk(TextChunk chunk) throws Exception {
+        rsaManager().encryptChunk(chunk, writeKey());
+    }
+
+    // Chunks under a session key share one RSA unwrap
+    public void decryptChunk(TextChunk chunk) throws Exception {
+        rsaManager().decryptChunk(chunk, sessionKeys);
     }
 
     // Security operations
     public void encryptAllChunks() {
-        int count = 0;
-        for (TextChunk chunk : textChunks) {
-            if (!chunk.isEncrypted()) {
-                try {
-                    String encrypted = rsaManager.encrypt(chunk.getText());
-                    chunk.setText(encrypted);
-                    chunk.setEncrypted(true);
-                    count++;
-                } catch (Exception e) {
-                    log("Failed to encrypt chunk: " + e.getMessage());
-                }
+        runChunkTask(ChunkCryptoTask.Mode.ENCRYPT);
+    }
+
+    public void decryptAllChunks() {
+        runChunkTask(ChunkCryptoTask.Mode.DECRYPT);
+    }
+
+    // Runs on all cores off the EDT; the chunk list follows in batches
+    private void runChunkTask(ChunkCryptoTask.Mode mode) {
+        if (chunkTask != null && !chunkTask.isDone()) {
+            log("Another bulk operation is still running");
+            return;
+        }
+
+        if (!canChangeChunks()) return;
+        // A pending auto-save would be refused while the task runs, so it is written first
+        flushAutoSave();
+
+        boolean encrypt = mode == ChunkCryptoTask.Mode.ENCRYPT;
+        List<Integer> indexes = new ArrayList<>();
+        int hiddenFiles = 0;
+        for (int i = 0; i < textChunks.size(); i++) {
+            TextChunk chunk = textChunks.get(i);
+            if (chunk.isEncrypted() == encrypt) {
+                continue;
             }
+            // Hidden files are binary; they only come out through Extract Hidden File
+            if (!encrypt && RSAManager.isHiddenFile(chunk)) {
+                hiddenFiles++;
+            } else {
+                indexes.add(i);
+            }
+        }
+        if (hiddenFiles > 0) {
+            log("Skipping " + hiddenFiles + " hidden file(s); use Security > Extract Hidden File");
+        }
+        if (indexes.isEmpty()) {
+            log(encrypt ? "No chunks to encrypt" : "No chunks to decrypt");
+            return;
         }
 
-        if (count > 0) {
-            chunkPanel.refreshDisplay();
-            log("Encrypted " + count + " chunks");
-        } else {
-            log("No chunks to encrypt");
+        try {
+            // The session key is made here so every worker shares it
+            chunkTask = new ChunkCryptoTask(this, mode, textChunks, indexes, rsaManager(),
+                    encrypt ? writeKey() : null, new ArrayList<>(sessionKeys));
+        } catch (Exception e) {
+            log("Failed to start: " + e.getMessage());
+            return;
         }
+
+        progressBar.setMaximum(indexes.size());
+        progressBar.setValue(0);
+        progressBar.setString((encrypt ? "Encrypting " : "Decrypting ") + indexes.size() + " chunks");
+        progressPanel.setVisible(true);
+        // Chunks stay as they are until the task is done, so its results still apply to them
+        setChunksBusy(encrypt ? "encryption" : "decryption");
+        chunkTask.execute();
     }
 
-    public void decryptAllChunks() {
-        int count = 0;
-        for (TextChunk chunk : textChunks) {
-            if (chunk.isEncrypted()) {
-                try {
-                    String decrypted = rsaManager.decrypt(chunk.getText());
-                    chunk.setText(decrypted);
-                    chunk.setEncrypted(false);
-                    count++;
-                } catch (Exception e) {
-                    log("Failed to decrypt chunk: " + e.getMessage());
-                }
+    void chunkTaskProgress(ChunkCryptoTask task, int completed, List<Integer> updated) {
+        if (task == chunkTask) {
+            progressBar.setValue(completed);
+            progressBar.setString(completed + " / " + task.getTotal());
+        }
+        // Skipped if another file was loaded meanwhile
+        if (task.getChunks() == textChunks) {
+            chunkPanel.updateChunks(updated);
+        }
+    }
+
+    void chunkTaskFinished(ChunkCryptoTask task, String summary) {
+        if (task == chunkTask) {
+            progressPanel.setVisible(false);
+            setChunksBusy(null);
+        }
+        log(summary);
+    }
+
+    // Encrypts a file of any size into a new chunk, streamed straight into the saved PNG off the EDT.
+    // The keyword only labels the chunk; the real name travels sealed inside the envelope
+    private void hideFile() {
+        if (currentFile == null) {
+            log("Open a PNG file first");
+            return;
+        }
+        if (!canChangeChunks()) return;
+
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+
+        String name = file.getName();
+        byte[] keyword = PNGProcessor.toKeyword(name).getBytes(StandardCharsets.ISO_8859_1);
+        long length = keyword.length + 1 + rsaManager().fileEnvelopeLength(name, file.length());
+        if (length > Integer.MAX_VALUE) {
+            log("File too large to hide: " + name);
+            return;
+        }
+
+        flushAutoSave();
+        PNGIndex source;
+        try {
+            source = currentIndex();
+        } catch (IOException e) {
+            log("Error hiding file: " + e.getMessage());
+            return;
+        }
+        List<TextChunk> chunks = new ArrayList<>(textChunks);
+        List<byte[]> keyBlocks = keyBlocks();
+        File target = currentFile;
+        RSAManager rsa = rsaManager();
+
+        setChunksBusy("hiding " + name);
+        log("Hiding " + name + "...");
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return pngProcessor.saveWithStreamedChunk(source, chunks, keyBlocks,
+                        PNGProcessor.ENCRYPTED_CHUNK_TYPE, (int) length, out -> {
+                            out.write(keyword);
+                            out.write(0);
+                            try (InputStream in = new FileInputStream(file)) {
+                                rsa.encryptFileToEnvelope(name, in, out);
+                            } catch (IOException e) {
+                                throw e;
+                            } catch (Exception e) {
+                                throw new IOException("Encryption failed", e);
+                            }
+                        }, target);
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
+        }, FILE_IO).whenComplete((index, error) -> SwingUtilities.invokeLater(() -> {
+            setChunksBusy(null);
+            if (error != null) {
+                log("Error hiding file: " + cause(error).getMessage());
+                return;
+            }
+            // No other file could be opened meanwhile, so the new index belongs to this one
+            try {
+                chunkIndex = index;
+                textChunks = pngProcessor.extractTextChunks(chunkIndex.getChunks());
+                chunkPanel.updateChunkList(textChunks);
+                log("Hid " + name + " in " + target.getName());
+            } catch (IOException e) {
+                log("Error reading chunks: " + e.getMessage());
+            }
+        }));
+    }
+
+    private void extractHiddenFile() {
+        if (!canChangeChunks()) return;
+
+        int index = chunkPanel.getSelectedIndex();
+        if (index < 0 || index >= textChunks.size() || !RSAManager.isHiddenFile(textChunks.get(index))) {
+            log("Select a hidden file chunk to extract");
+            return;
         }
+        TextChunk chunk = textChunks.get(index);
+        RSAManager rsa = rsaManager();
+        List<SessionKey> keys = new ArrayList<>(sessionKeys);
 
-        if (count > 0) {
-            chunkPanel.refreshDisplay();
-            log("Decrypted " + count + " chunks");
-        } else {
-            log("No chunks to decrypt");
+        String name;
+        try {
+            name = rsa.hiddenFileName(chunk, keys);
+        } catch (Exception e) {
+            log("Error reading hidden file: " + e.getMessage());
+            return;
         }
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(name));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File target = chooser.getSelectedFile();
+
+        // Decrypted segment by segment from the mapped chunk, off the EDT; the chunk's mapping
+        // stays valid because the file cannot be saved or replaced until this finishes
+        setChunksBusy("extracting " + target.getName());
+        log("Extracting " + target.getName() + "...");
+        CompletableFuture.runAsync(() -> {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+                rsa.extractHiddenFile(chunk, out, keys);
+            } catch (Exception e) {
+                target.delete();
+                throw new CompletionException(e);
+            }
+        }, FILE_IO).whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+            setChunksBusy(null);
+            log(error != null ? "Error extracting file: " + cause(error).getMessage()
+                    : "Extracted " + target.getName());
+        }));
+    }
+
+    // Applies to session keys created from now on; chunks already encrypted keep their backend
+    private void selectKeyWrapper(byte id) {
+        rsaManager().setKeyWrapper(id);
+        writeKey = null;
+        log("Key algorithm: " + rsaManager().getKeyWrapper().getName());
+    }
+
+    // A new session key is started so no key is used with both ciphers
+    private void selectContentCipher(ContentCipher cipher) {
+        rsaManager().setContentCipher(cipher);
+        writeKey = null;
+        log("Content cipher: " + cipher.getDisplayName());
     }
 
     private void generateNewKeys() {
+        KeyWrapper keyWrapper = rsaManager().getKeyWrapper();
         int result = JOptionPane.showConfirmDialog(this,
-                "Generate new RSA key pair?\nThis will replace existing keys.",
+                "Generate new " + keyWrapper.getName() + " key pair?\nThis will replace existing keys.",
                 "Generate Keys",
                 JOptionPane.YES_NO_OPTION,
                 JOptionPane.QUESTION_MESSAGE);
 
         if (result == JOptionPane.YES_OPTION) {
-            rsaManager.generateNewKeys();
-            log("New RSA key pair generated");
+            rsaManager().generateNewKeys(keyWrapper.getId());
+            writeKey = null;
+            log("New " + keyWrapper.getName() + " key pair generated");
         }
     }
 
@@ -482,7 +1019,7 @@ public class DoroFrame extends JFrame {
 
         if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             try {
-                rsaManager.exportPublicKey(chooser.getSelectedFile());
+                rsaManager().exportPublicKey(chooser.getSelectedFile());
                 log("Public key exported");
             } catch (IOException e) {
                 log("Export failed: " + e.getMessage());
@@ -496,8 +1033,40 @@ public class DoroFrame extends JFrame {
 
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             try {
-                rsaManager.importPublicKey(chooser.getSelectedFile());
-                log("Public key imported");
+                Recipient recipient = rsaManager().importPublicKey(chooser.getSelectedFile());
+                writeKey = null;
+                log("Recipient added: " + recipient.getFingerprintHex()
+                        + " (" + rsaManager().getRecipients().size() + " besides you)");
+            } catch (Exception e) {
+                log("Import failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Chunks encrypted from now on are readable with our own keys only
+    private void clearRecipients() {
+        rsaManager().clearRecipients();
+        writeKey = null;
+        log("Recipients cleared");
+    }
+
+    // Old pairs are saved as *_prv.pem next to a matching *_pub.pem
+    private void importKeyPair() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Select Old Private Key");
+        chooser.setFileFilter(new FileNameExtensionFilter("Private Key files", "pem", "key"));
+
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File privateKeyFile = chooser.getSelectedFile();
+            File publicKeyFile = new File(privateKeyFile.getParentFile(),
+                    privateKeyFile.getName().replace("prv", "pub"));
+            if (publicKeyFile.equals(privateKeyFile) || !publicKeyFile.exists()) {
+                log("Import failed: no matching public key " + publicKeyFile.getName());
+                return;
+            }
+            try {
+                String fingerprint = rsaManager().getKeyring().importKeyPair(publicKeyFile, privateKeyFile);
+                log("Key pair " + fingerprint + " added to keyring (" + rsaManager().getKeyring().size() + " keys)");
             } catch (Exception e) {
                 log("Import failed: " + e.getMessage());
             }
@@ -682,7 +1251,7 @@ public class DoroFrame extends JFrame {
 
     // Getters
     public List<TextChunk> getTextChunks() { return textChunks; }
-    public RSAManager getRSAManager() { return rsaManager; }
+    public RSAManager getRSAManager() { return rsaManager(); }
     public ChunkPanel getChunkPanel() { return chunkPanel; }
     public TextEditorPanel getTextEditorPanel() { return textEditorPanel; }
     public File getCurrentFile() { return currentFile; }
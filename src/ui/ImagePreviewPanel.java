@@ -2,23 +2,45 @@ package ui;
 
 import doro.DoroStyle;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static doro.DoroStyle.*;
 
 public class ImagePreviewPanel extends JPanel {
     private final DoroFrame parent;
-    private JLabel imageLabel;
+    private ImageCanvas imageLabel;
+    private JScrollPane scrollPane;
     private JLabel infoLabel;
-    private BufferedImage currentImage;
+    private PreviewImage currentImage;
     private double zoomLevel = 1.0;
 
+    // Region decoded at a finer subsampling than the overview, once zoomed in past it
+    private BufferedImage detail;
+    private Rectangle detailRegion;
+    private int detailSubsampling;
+    // Bumped whenever a pending region decode becomes stale
+    private volatile int detailGeneration;
+
+    // Scrolling and zooming settle for this long before the visible region is decoded
+    private static final int DETAIL_DELAY = 150;
+    private final javax.swing.Timer detailTimer;
+
+    private static final ExecutorService DECODER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "preview-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public ImagePreviewPanel(DoroFrame parent) {
         this.parent = parent;
+        detailTimer = new javax.swing.Timer(DETAIL_DELAY, e -> requestDetail());
+        detailTimer.setRepeats(false);
         initializePanel();
     }
 
@@ -48,11 +70,16 @@ public class ImagePreviewPanel extends JPanel {
         controlPanel.add(actualSizeButton);
 
         // Image display area
-        imageLabel = new JLabel("Drop a PNG file here or use File → Open", SwingConstants.CENTER);
+        imageLabel = new ImageCanvas("Drop a PNG file here or use File → Open");
         imageLabel.setFont(DoroStyle.FONT_ITALIC);
         imageLabel.setForeground(DoroStyle.TEXT_SECONDARY);
 
-        JScrollPane scrollPane = DoroStyle.createScrollPane(imageLabel);
+        scrollPane = DoroStyle.createScrollPane(imageLabel);
+        scrollPane.getViewport().addChangeListener(e -> {
+            if (currentImage != null) {
+                detailTimer.restart();
+            }
+        });
         scrollPane.setBackground(DORO_WHITE);
         scrollPane.getViewport().setBackground(DORO_WHITE);
         scrollPane.setBorder(BorderFactory.createLineBorder(DORO_LIGHT_PINK, 1));
@@ -75,27 +102,118 @@ public class ImagePreviewPanel extends JPanel {
     }
 
 
-    public void loadImage(File file) {
-        try {
-            currentImage = ImageIO.read(file);
-            if (currentImage != null) {
-                fitToWindow();
-                updateInfo();
-            }
-        } catch (Exception e) {
-            parent.log("Error loading image preview: " + e.getMessage());
+    // Size the overview of the next image is decoded for
+    public Dimension getViewportSize() {
+        Dimension size = scrollPane.getViewport().getExtentSize();
+        if (size.width <= 0 || size.height <= 0) {
+            return Toolkit.getDefaultToolkit().getScreenSize();
+        }
+        return size;
+    }
+
+    public void showLoading(File file) {
+        clearImage();
+        imageLabel.setText("Loading " + file.getName() + "...");
+        infoLabel.setText("Loading image");
+    }
+
+    public void showError() {
+        clearImage();
+        imageLabel.setText("No preview available");
+        infoLabel.setText("No image loaded");
+    }
+
+    public void showImage(PreviewImage image) {
+        clearImage();
+        currentImage = image;
+        imageLabel.setText("");
+        fitToWindow();
+        updateInfo();
+
+        // Until the pyramid is ready, zooming out scales the overview directly
+        DECODER.execute(() -> {
+            image.buildPyramid();
+            SwingUtilities.invokeLater(() -> {
+                if (currentImage == image) {
+                    imageLabel.repaint();
+                }
+            });
+        });
+    }
+
+    private void clearImage() {
+        if (currentImage != null) {
+            currentImage.abort();
         }
+        currentImage = null;
+        clearDetail();
+        imageLabel.revalidate();
+        imageLabel.repaint();
+    }
+
+    private void clearDetail() {
+        detailGeneration++;
+        detailTimer.stop();
+        detail = null;
+        detailRegion = null;
     }
 
     private void updateDisplay() {
         if (currentImage == null) return;
 
-        int width = (int)(currentImage.getWidth() * zoomLevel);
-        int height = (int)(currentImage.getHeight() * zoomLevel);
+        imageLabel.revalidate();
+        imageLabel.repaint();
+        detailTimer.restart();
+    }
 
-        Image scaledImage = currentImage.getScaledInstance(width, height, Image.SCALE_SMOOTH);
-        imageLabel.setIcon(new ImageIcon(scaledImage));
-        imageLabel.setText("");
+    // Decodes the visible region when the zoom shows more than the overview holds
+    private void requestDetail() {
+        if (currentImage == null) return;
+
+        int subsampling = Math.max(1, (int) (1 / zoomLevel));
+        if (subsampling >= currentImage.getOverviewSubsampling()) {
+            if (detail != null) {
+                clearDetail();
+                imageLabel.repaint();
+            }
+            return;
+        }
+
+        Rectangle bounds = new Rectangle(currentImage.getWidth(), currentImage.getHeight());
+        Rectangle view = scrollPane.getViewport().getViewRect();
+        Rectangle visible = new Rectangle((int) (view.x / zoomLevel), (int) (view.y / zoomLevel),
+                (int) Math.ceil(view.width / zoomLevel) + 1, (int) Math.ceil(view.height / zoomLevel) + 1)
+                .intersection(bounds);
+        if (visible.isEmpty()) return;
+        if (detail != null && detailSubsampling == subsampling && detailRegion.contains(visible)) return;
+
+        // A margin around the view keeps small scrolls inside the decoded region
+        Rectangle region = new Rectangle(visible);
+        region.grow(visible.width / 4, visible.height / 4);
+        Rectangle target = region.intersection(bounds);
+
+        PreviewImage image = currentImage;
+        int generation = ++detailGeneration;
+        DECODER.execute(() -> {
+            if (generation != detailGeneration) return;
+            try {
+                BufferedImage tile = image.decodeRegion(target, subsampling);
+                if (tile != null) {
+                    SwingUtilities.invokeLater(() -> detailDecoded(generation, target, subsampling, tile));
+                }
+            } catch (IOException e) {
+                parent.log("Error decoding image region: " + e.getMessage());
+            }
+        });
+    }
+
+    private void detailDecoded(int generation, Rectangle region, int subsampling, BufferedImage tile) {
+        if (generation != detailGeneration) return;
+
+        detail = tile;
+        detailRegion = region;
+        detailSubsampling = subsampling;
+        imageLabel.repaint();
     }
 
     private void updateInfo() {
@@ -139,4 +257,46 @@ public class ImagePreviewPanel extends JPanel {
         updateDisplay();
         updateInfo();
     }
-}
\ No newline at end of file
+
+    // Shows the message text until an image is set, then paints the pyramid level nearest the
+    // zoom with the decoded detail region over it
+    private class ImageCanvas extends JLabel {
+        ImageCanvas(String text) {
+            super(text, SwingConstants.CENTER);
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            if (currentImage == null) {
+                return super.getPreferredSize();
+            }
+            return new Dimension((int) Math.ceil(currentImage.getWidth() * zoomLevel),
+                    (int) Math.ceil(currentImage.getHeight() * zoomLevel));
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (currentImage == null) return;
+
+            Graphics2D g2 = (Graphics2D) g.create();
+            try {
+                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                int level = currentImage.levelFor(zoomLevel);
+                draw(g2, currentImage.getLevel(level), 0, 0, currentImage.getLevelSubsampling(level));
+                if (detail != null) {
+                    draw(g2, detail, detailRegion.x, detailRegion.y, detailSubsampling);
+                }
+            } finally {
+                g2.dispose();
+            }
+        }
+
+        // Each pixel of a subsampled image covers subsampling x subsampling image pixels
+        private void draw(Graphics2D g2, BufferedImage image, int x, int y, int subsampling) {
+            double scale = subsampling * zoomLevel;
+            g2.drawImage(image, (int) Math.round(x * zoomLevel), (int) Math.round(y * zoomLevel),
+                    (int) Math.round(image.getWidth() * scale), (int) Math.round(image.getHeight() * scale), null);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package ui;
+
+import png.ByteBufferImageInputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// A PNG shown at screen resolution rather than decoded in full. The overview is read with
+// source subsampling so it is about the size of the viewport; when zooming in past it, only
+// the visible region is decoded, at the subsampling the zoom needs. Memory is bounded by
+// the screen, not by the image.
+class PreviewImage {
+    // Halving stops once a level is this small on both sides
+    private static final int MIN_LEVEL_SIZE = 32;
+
+    private final ByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final BufferedImage overview;
+    private final int overviewSubsampling;
+    // The overview and its successive halvings, converted to a type that draws fast;
+    // null until buildPyramid has run
+    private volatile List<BufferedImage> pyramid;
+    // Reader of the region decode in progress, so a newer one can abort it
+    private volatile ImageReader activeReader;
+
+    private PreviewImage(ByteBuffer buffer, int width, int height, BufferedImage overview, int overviewSubsampling) {
+        this.buffer = buffer;
+        this.width = width;
+        this.height = height;
+        this.overview = overview;
+        this.overviewSubsampling = overviewSubsampling;
+    }
+
+    // Decodes the overview of one file; abort() stops it from another thread, e.g. when a
+    // newer file is opened while a large image is still being read
+    static class Opener {
+        private volatile ImageReader activeReader;
+        private volatile boolean aborted;
+
+        // Runs off the EDT; the overview is no larger than maxWidth x maxHeight, give or take
+        // one step. Returns null if aborted
+        PreviewImage open(ByteBuffer buffer, int maxWidth, int maxHeight) throws IOException {
+            ImageReader reader = reader(buffer);
+            activeReader = reader;
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int subsampling = Math.max(1, Math.max(
+                        ceilDiv(width, Math.max(1, maxWidth)), ceilDiv(height, Math.max(1, maxHeight))));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                if (aborted) {
+                    return null;
+                }
+                BufferedImage overview = reader.read(0, param);
+                return aborted ? null : new PreviewImage(buffer, width, height, overview, subsampling);
+            } finally {
+                activeReader = null;
+                reader.dispose();
+            }
+        }
+
+        void abort() {
+            aborted = true;
+            ImageReader reader = activeReader;
+            if (reader != null) {
+                reader.abort();
+            }
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getOverviewSubsampling() {
+        return overviewSubsampling;
+    }
+
+    // Runs off the EDT. Halving with bilinear filtering averages each 2x2 block, so every level
+    // is a proper downscale of the one above and drawing from the nearest level never shrinks
+    // an image by more than half
+    void buildPyramid() {
+        List<BufferedImage> levels = new ArrayList<>();
+        BufferedImage level = resize(overview, overview.getWidth(), overview.getHeight());
+        levels.add(level);
+        while (level.getWidth() > MIN_LEVEL_SIZE || level.getHeight() > MIN_LEVEL_SIZE) {
+            level = resize(level, Math.max(1, (level.getWidth() + 1) / 2), Math.max(1, (level.getHeight() + 1) / 2));
+            levels.add(level);
+        }
+        pyramid = levels;
+    }
+
+    // Coarsest level with at least one pixel per screen pixel at this zoom
+    int levelFor(double zoom) {
+        List<BufferedImage> levels = pyramid;
+        if (levels == null) {
+            return 0;
+        }
+        int level = 0;
+        while (level + 1 < levels.size() && getLevelSubsampling(level + 1) * zoom <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    BufferedImage getLevel(int level) {
+        List<BufferedImage> levels = pyramid;
+        return levels != null ? levels.get(level) : overview;
+    }
+
+    // Image pixels covered by one pixel of a level
+    int getLevelSubsampling(int level) {
+        return overviewSubsampling << level;
+    }
+
+    // Runs off the EDT; region is in image pixels. Returns null if aborted by a newer call
+    BufferedImage decodeRegion(Rectangle region, int subsampling) throws IOException {
+        ImageReader reader = reader(buffer);
+        ImageReader previous = activeReader;
+        activeReader = reader;
+        if (previous != null) {
+            previous.abort();
+        }
+        try {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(region);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            BufferedImage image = reader.read(0, param);
+            return activeReader == reader ? image : null;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    // Stops a region decode still running, e.g. when another image is shown
+    void abort() {
+        ImageReader reader = activeReader;
+        activeReader = null;
+        if (reader != null) {
+            reader.abort();
+        }
+    }
+
+    private static BufferedImage resize(BufferedImage image, int width, int height) {
+        BufferedImage resized = new BufferedImage(width, height,
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = resized.createGraphics();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g2.dispose();
+        }
+        return resized;
+    }
+
+    private static ImageReader reader(ByteBuffer buffer) throws IOException {
+        ByteBufferImageInputStream in = new ByteBufferImageInputStream(buffer);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format");
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
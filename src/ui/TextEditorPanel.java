@@ -22,6 +22,10 @@ public class TextEditorPanel extends JPanel {
     private final DoroFrame parent;
     private TextChunk currentChunk;
     private int currentIndex;
+    // Chunk whose update is waiting for the auto-save, if any
+    private TextChunk savingChunk;
+    // Off while a background task rewrites the chunks
+    private boolean editingEnabled = true;
 
     public TextEditorPanel(DoroFrame parent) {
         this.parent = parent;
@@ -155,17 +159,14 @@ public class TextEditorPanel extends JPanel {
         keywordField.setText(chunk.getKeyword());
         textArea.setText(chunk.getText());
 
-        boolean isEncrypted = chunk.isEncrypted();
-        textArea.setEditable(!isEncrypted);
-        keywordField.setEditable(!isEncrypted);
-        encryptButton.setEnabled(!isEncrypted);
-        decryptButton.setEnabled(isEncrypted);
-        updateButton.setEnabled(!isEncrypted);
-        clearButton.setEnabled(!isEncrypted);
+        updateControls();
 
-        setControlsEnabled(true);
-
-        if (isEncrypted) {
+        if (RSAManager.isHiddenFile(chunk)) {
+            statusLabel.setText("Chunk " + (index + 1) + " - Hidden File");
+            statusLabel.setForeground(DoroStyle.ERROR_RED);
+            textArea.setBackground(DoroStyle.DORO_WHITE);
+            bytesLabel.setText("(Security > Extract Hidden File)");
+        } else if (chunk.isEncrypted()) {
             statusLabel.setText("Chunk " + (index + 1) + " - Encrypted");
             statusLabel.setForeground(DoroStyle.ERROR_RED);
             textArea.setBackground(DoroStyle.DORO_WHITE);
@@ -178,27 +179,43 @@ public class TextEditorPanel extends JPanel {
         }
     }
 
+    // Editing is locked while a background task rewrites the chunks
+    public void setEditingEnabled(boolean enabled) {
+        editingEnabled = enabled;
+        if (currentChunk != null) {
+            updateControls();
+        }
+    }
+
+    // Follows the current chunk's state; hidden files are never decrypted as text
+    private void updateControls() {
+        boolean isEncrypted = currentChunk.isEncrypted();
+        boolean editable = editingEnabled && !isEncrypted;
+
+        setControlsEnabled(true);
+        textArea.setEditable(editable);
+        keywordField.setEditable(editable);
+        encryptButton.setEnabled(editable);
+        decryptButton.setEnabled(editingEnabled && isEncrypted && !RSAManager.isHiddenFile(currentChunk));
+        updateButton.setEnabled(editable);
+        clearButton.setEnabled(editable);
+    }
+
     private void encryptCurrentChunk() {
-        if (currentChunk == null || currentChunk.isEncrypted()) return;
+        if (currentChunk == null || currentChunk.isEncrypted() || !parent.canChangeChunks()) return;
 
         String text = textArea.getText();
 
         try {
-            RSAManager rsaManager = parent.getRSAManager();
-            String encrypted = rsaManager.encrypt(text);
+            TextChunk encrypted = new TextChunk(keywordField.getText(), text, false);
+            parent.encryptChunk(encrypted);
 
-            currentChunk.setText(encrypted);
-            currentChunk.setEncrypted(true);
-            currentChunk.setKeyword(keywordField.getText());
+            currentChunk.setEncryptedData(encrypted.getEncryptedData());
+            currentChunk.setKeyword(encrypted.getKeyword());
 
-            textArea.setText(encrypted);
-            textArea.setEditable(false);
+            textArea.setText(currentChunk.getText());
             textArea.setBackground(DoroStyle.DORO_WHITE);
-            keywordField.setEditable(false);
-            encryptButton.setEnabled(false);
-            decryptButton.setEnabled(true);
-            updateButton.setEnabled(false);
-            clearButton.setEnabled(false);
+            updateControls();
 
             statusLabel.setText("Chunk " + (currentIndex + 1) + " - Encrypted");
             statusLabel.setForeground(DoroStyle.ERROR_RED);
@@ -217,23 +234,22 @@ public class TextEditorPanel extends JPanel {
     }
 
     private void decryptCurrentChunk() {
-        if (currentChunk == null || !currentChunk.isEncrypted()) return;
+        if (currentChunk == null || !currentChunk.isEncrypted() || !parent.canChangeChunks()) return;
 
-        try {
-            RSAManager rsaManager = parent.getRSAManager();
-            String decrypted = rsaManager.decrypt(currentChunk.getText());
+        if (RSAManager.isHiddenFile(currentChunk)) {
+            JOptionPane.showMessageDialog(parent,
+                    "This chunk holds a hidden file. Use Security > Extract Hidden File to save it.",
+                    "Hidden File",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
 
-            currentChunk.setText(decrypted);
-            currentChunk.setEncrypted(false);
+        try {
+            parent.decryptChunk(currentChunk);
 
-            textArea.setText(decrypted);
-            textArea.setEditable(true);
+            textArea.setText(currentChunk.getText());
             textArea.setBackground(DoroStyle.BACKGROUND_LIGHT);
-            keywordField.setEditable(true);
-            encryptButton.setEnabled(true);
-            decryptButton.setEnabled(false);
-            updateButton.setEnabled(true);
-            clearButton.setEnabled(true);
+            updateControls();
 
             statusLabel.setText("Chunk " + (currentIndex + 1) + " - Plain Text");
             statusLabel.setForeground(DoroStyle.SUCCESS_GREEN);
@@ -252,7 +268,7 @@ public class TextEditorPanel extends JPanel {
     }
 
     private void updateCurrentChunk() {
-        if (currentChunk == null || currentChunk.isEncrypted()) return;
+        if (currentChunk == null || currentChunk.isEncrypted() || !parent.canChangeChunks()) return;
 
         String newText = textArea.getText();
         String newKeyword = keywordField.getText().trim();
@@ -265,21 +281,38 @@ public class TextEditorPanel extends JPanel {
         currentChunk.setText(newText);
         currentChunk.setKeyword(newKeyword);
 
-        // Auto-save to file
-        try {
-            parent.saveFile();
-            parent.getChunkPanel().refreshDisplay();
-            parent.log("Updated and saved chunk " + (currentIndex + 1));
+        // Auto-save to file; bursts of updates are coalesced into one save, reported by saveFinished
+        savingChunk = currentChunk;
+        parent.scheduleAutoSave();
+        parent.getChunkPanel().refreshDisplay();
+        parent.log("Updated chunk " + (currentIndex + 1));
+
+        statusLabel.setText("Chunk " + (currentIndex + 1) + " - Saving...");
+        statusLabel.setForeground(DoroStyle.TEXT_SECONDARY);
+    }
 
-            // Visual feedback
-            statusLabel.setText("Chunk " + (currentIndex + 1) + " - Saved");
-            Timer timer = new Timer(2000, e -> statusLabel.setText("Chunk " + (currentIndex + 1) + " - Plain Text"));
-            timer.setRepeats(false);
-            timer.start();
+    // Called by the frame after each save; error is null if it succeeded
+    public void saveFinished(String error) {
+        TextChunk saved = savingChunk;
+        savingChunk = null;
+        if (saved == null || saved != currentChunk) return;
 
-        } catch (Exception e) {
-            parent.log("Failed to save: " + e.getMessage());
+        if (error != null) {
+            statusLabel.setText("Chunk " + (currentIndex + 1) + " - Save failed: " + error);
+            statusLabel.setForeground(DoroStyle.ERROR_RED);
+            return;
         }
+
+        // Visual feedback
+        statusLabel.setText("Chunk " + (currentIndex + 1) + " - Saved");
+        statusLabel.setForeground(DoroStyle.SUCCESS_GREEN);
+        Timer timer = new Timer(2000, e -> {
+            if (currentChunk == saved && savingChunk == null && !saved.isEncrypted()) {
+                statusLabel.setText("Chunk " + (currentIndex + 1) + " - Plain Text");
+            }
+        });
+        timer.setRepeats(false);
+        timer.start();
     }
 
     private void clearText() {